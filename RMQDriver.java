@@ -1,5 +1,10 @@
+import java.io.IOException;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 
 import rmq.*;
@@ -7,6 +12,12 @@ import driver.*;
 
 public class RMQDriver {
 	public static void main(String[] args) {
+		/* Report modes are selected by a leading flag. */
+		if (args.length > 0 && args[0].startsWith("--")) {
+			runMode(args);
+			return;
+		}
+		
 		/* We should either get 1 or 2 arguments. The arguments will be the
 		 * name of the RMQ class to run and (optionally) a random seed.
 		 */
@@ -17,14 +28,17 @@ public class RMQDriver {
 		
 		/* Parse the parameters into configuration settings for the test. */
 		RMQFactory theirFactory = createRMQFactoryFor(args[0]);
-		Random rand = selectRandom(args);
+		long seed = selectSeed(args);
+		System.out.println("Using random seed " + seed);
 		
 		/* Get a reference factory so we can double-check answers. */
 		RMQFactory ourFactory = createRMQFactoryFor("oursolution.SparseTable");
+		DifferentialTester tester = new DifferentialTester(args[0], theirFactory, ourFactory,
+				Runtime.getRuntime().availableProcessors());
 		
 		/* Run some tests! */
-		runSmallTests(theirFactory, ourFactory, rand);
-		runLargeTests(theirFactory, ourFactory, rand);
+		runSmallTests(tester, seed);
+		runLargeTests(tester, seed);
 		System.out.println("All tests completed!");
 	}
 	
@@ -49,6 +63,88 @@ public class RMQDriver {
 		System.out.println("      rmq.PrecomputedRMQ or rmq.FisherHeunRMQ");
 		System.out.println("  The random seed can be any arbitrary long. This is useful for ensuring");
 		System.out.println("      repeatability in testing.");
+		System.out.println("  Trials run in parallel on every core, each from its own derived seed.");
+		System.out.println();
+		System.out.println("  java -ea RMQDriver --trial rmq-class-name trial-seed size input-dist probes");
+		System.out.println("      Reruns the single trial named in a failure report.");
+		System.out.println("  java -ea RMQDriver --sweep rmq-class-name size[,size...] trials [random-seed]");
+		System.out.println("      Tests large arrays (e.g. 1000000,10000000) against the offline engine,");
+		System.out.println("      cycling through every input distribution.");
+		System.out.println();
+		System.out.println("Workload modes:");
+		System.out.println("  java RMQDriver --gen-trace out-file size queries input-dist query-dist [random-seed]");
+		System.out.println("      Writes a binary query trace. input-dist is one of " + Arrays.toString(InputDistribution.values()));
+		System.out.println("      and query-dist is one of " + Arrays.toString(QueryDistribution.values()) + ".");
+		System.out.println("  java RMQDriver --bench rmq-class-name trace-file");
+		System.out.println("      Replays a trace against a structure and reports throughput and latency.");
+		System.out.println("  java RMQDriver --offline rmq-class-name trace-file");
+		System.out.println("      Times the offline batch engine against building the structure and querying it.");
+		System.out.println("  java RMQDriver --persistent size updates [random-seed]");
+		System.out.println("      Reports the memory cost per version of rmq.PersistentRMQ.");
+		System.out.println("  java RMQDriver --alloc rmq-class-name");
+		System.out.println("      Checks that building the structure keeps a bounded number of arrays and");
+		System.out.println("      allocates nothing per block or element beyond them, at several sizes.");
+		System.out.println("  java -XX:MaxDirectMemorySize=4g RMQDriver --offheap scratch-file [size] [random-seed]");
+		System.out.println("      Writes size random floats (default just over 2^31, about 8 GB) to scratch-file,");
+		System.out.println("      maps it with rmq.OffHeapRMQ and checks queries against a linear scan.");
+	}
+	
+	/**
+	 * Runs one of the flag-selected report modes.
+	 * 
+	 * @param args The arguments list, starting with the mode flag.
+	 */
+	private static void runMode(String[] args) {
+		try {
+			if (args[0].equals("--trial") && args.length == 6) {
+				DifferentialTester.Trial trial = new DifferentialTester.Trial(Long.parseLong(args[2]),
+						Integer.parseInt(args[3]), InputDistribution.valueOf(args[4]), Integer.parseInt(args[5]));
+				new DifferentialTester(args[1], createRMQFactoryFor(args[1]), null, 1).run(Arrays.asList(trial));
+				System.out.println("Trial passed.");
+				return;
+			}
+			if (args[0].equals("--sweep") && (args.length == 4 || args.length == 5)) {
+				long seed = args.length == 5 ? Long.parseLong(args[4]) : new Random().nextLong();
+				System.out.println("Using random seed " + seed);
+				runSweep(args[1], args[2], Integer.parseInt(args[3]), seed);
+				System.out.println("All tests completed!");
+				return;
+			}
+			if (args[0].equals("--gen-trace") && (args.length == 6 || args.length == 7)) {
+				Random rand = args.length == 7 ? new Random(Long.parseLong(args[6])) : new Random();
+				float[] elems = InputDistribution.valueOf(args[4]).generate(rand, Integer.parseInt(args[2]));
+				QueryTrace trace = QueryDistribution.valueOf(args[5]).generate(rand, elems, Integer.parseInt(args[3]));
+				trace.write(Paths.get(args[1]));
+				return;
+			}
+			if (args[0].equals("--bench") && args.length == 3) {
+				Benchmarks.runTrace(args[1], createRMQFactoryFor(args[1]), QueryTrace.read(Paths.get(args[2])));
+				return;
+			}
+			if (args[0].equals("--persistent") && (args.length == 3 || args.length == 4)) {
+				Random rand = args.length == 4 ? new Random(Long.parseLong(args[3])) : new Random();
+				Benchmarks.runPersistent(Integer.parseInt(args[1]), Integer.parseInt(args[2]), rand);
+				return;
+			}
+			if (args[0].equals("--alloc") && args.length == 2) {
+				Benchmarks.runAllocation(args[1], createRMQFactoryFor(args[1]), new Random(0));
+				return;
+			}
+			if (args[0].equals("--offheap") && args.length >= 2 && args.length <= 4) {
+				long size = args.length >= 3 ? Long.parseLong(args[2]) : (1L << 31) + 12345;
+				Random rand = args.length == 4 ? new Random(Long.parseLong(args[3])) : new Random();
+				Benchmarks.runOffHeap(Paths.get(args[1]), size, rand);
+				return;
+			}
+			if (args[0].equals("--offline") && args.length == 3) {
+				Benchmarks.runOffline(args[1], createRMQFactoryFor(args[1]), QueryTrace.read(Paths.get(args[2])));
+				return;
+			}
+		} catch (IOException | IllegalArgumentException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+		usage();
 	}
 	
 	/**
@@ -68,14 +164,17 @@ public class RMQDriver {
 			return new RMQFactory() {
 				@Override
 				public RMQ create(float[] elems) {
+					/* Rethrow what the constructor threw, so that the tester
+					 * can report it along with the trial that caused it. */
 					try {
 						return (RMQ) ctor.newInstance(elems);
-					} catch (Exception e) {
-						e.printStackTrace();
-						System.exit(-1);
-						
-						/* Silence compiler warnings; this code is unreachable. */
-						return null;
+					} catch (InvocationTargetException e) {
+						Throwable cause = e.getCause();
+						if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+						if (cause instanceof Error) throw (Error) cause;
+						throw new RuntimeException(cause);
+					} catch (ReflectiveOperationException e) {
+						throw new RuntimeException(e);
 					}
 				}
 			};
@@ -95,28 +194,27 @@ public class RMQDriver {
 	}
 	
 	/**
-	 * Given the command-line arguments, decides which random number generator
-	 * to use. By default, we use a new Random() based on the system time,
-	 * but this can be configured by the command-line arguments.
+	 * Given the command-line arguments, decides which seed the run uses.
+	 * By default, we draw one from a new Random() based on the system time,
+	 * but this can be configured by the command-line arguments. Either way
+	 * the seed is printed so the run can be repeated.
 	 * 
 	 * @param args The arguments list.
-	 * @return A random number generator.
+	 * @return The seed for the run.
 	 */
-	private static Random selectRandom(String[] args) {
-		/* If the random generator isn't specified, use the system time to seed
-		 * the random generator.
-		 */
-		if (args.length == 1) return new Random();
+	private static long selectSeed(String[] args) {
+		/* If the seed isn't specified, use the system time to pick one. */
+		if (args.length == 1) return new Random().nextLong();
 		
 		/* Otherwise, use the specified seed. */
 		try {
-			return new Random(Long.parseLong(args[1]));
+			return Long.parseLong(args[1]);
 		} catch (NumberFormatException e) {
 			e.printStackTrace();
 			System.exit(-1);
 			
 			/* Unreachable. */
-			return null;
+			return 0;
 		}
 	}
 	
@@ -138,26 +236,20 @@ public class RMQDriver {
 	/**
 	 * Runs tests comparing student code to our code on smallish arrays.
 	 * 
-	 * @param theirFactory A factory for creating objects of the student's type.
-	 * @param ourFactory A factory for creating reference objects of our type.
-	 * @param rand A random source.
+	 * @param tester The tester holding both factories.
+	 * @param seed The seed of the run.
 	 */
-	private static void runSmallTests(RMQFactory theirFactory,
-			                          RMQFactory ourFactory,
-			                          Random rand) {
+	private static void runSmallTests(DifferentialTester tester, long seed) {
 		startTest("Small Array Tests");
 		
+		List<DifferentialTester.Trial> trials = new ArrayList<DifferentialTester.Trial>();
 		for (int arrSize = 0; arrSize < MAX_SMALL_ARRAY_SIZE; arrSize++) {
-			System.out.println("Testing size " + arrSize);
-			
-			/* Run a bunch of trials on this array size. */
 			for (int trialNum = 0; trialNum < NUM_TRIALS_PER_SMALL_SIZE; trialNum++) {
-				float[] elems = randomArrayOfSize(rand, arrSize);
-				RMQ theirs = theirFactory.create(Arrays.copyOf(elems, arrSize));
-				RMQ ours   = ourFactory.create(elems);
-				testRMQ(theirs, ours, elems, rand, 10 * arrSize);
+				trials.add(new DifferentialTester.Trial(DifferentialTester.deriveSeed(seed, arrSize, trialNum),
+						arrSize, InputDistribution.UNIFORM, 10 * arrSize));
 			}
 		}
+		runTrials(tester, "sizes 0 to " + (MAX_SMALL_ARRAY_SIZE - 1), trials);
 	}
 	
 	/** Constants controlling the bounds on the large array tests. */
@@ -173,68 +265,73 @@ public class RMQDriver {
 	/**
 	 * Runs tests comparing student code to our code on larger arrays.
 	 * 
-	 * @param theirFactory A factory for creating objects of the student's type.
-	 * @param ourFactory A factory for creating reference objects of our type.
-	 * @param rand A random source.
+	 * @param tester The tester holding both factories.
+	 * @param seed The seed of the run.
 	 */
-	private static void runLargeTests(RMQFactory theirFactory,
-			                          RMQFactory ourFactory,
-			                          Random rand) {
+	private static void runLargeTests(DifferentialTester tester, long seed) {
 		startTest("Large Array Tests");
 		
+		List<DifferentialTester.Trial> trials = new ArrayList<DifferentialTester.Trial>();
 		for (int arrSize = MIN_LARGE_ARRAY_SIZE; arrSize <= MAX_LARGE_ARRAY_SIZE;
 			 arrSize += LARGE_ARRAY_STEP_SIZE) {
-			System.out.println("Testing size " + arrSize);
-			
-			/* Run a bunch of trials on this array size. */
 			for (int trialNum = 0; trialNum < NUM_TRIALS_PER_LARGE_SIZE; trialNum++) {
-				float[] elems = randomArrayOfSize(rand, arrSize);
-				RMQ theirs = theirFactory.create(Arrays.copyOf(elems, arrSize));
-				RMQ ours   = ourFactory.create(elems);
-				testRMQ(theirs, ours, elems, rand, 10 * arrSize);
+				trials.add(new DifferentialTester.Trial(DifferentialTester.deriveSeed(seed, arrSize, trialNum),
+						arrSize, InputDistribution.UNIFORM, 10 * arrSize));
 			}
 		}
+		runTrials(tester, "sizes " + MIN_LARGE_ARRAY_SIZE + " to " + MAX_LARGE_ARRAY_SIZE, trials);
 	}
 	
+	/** Upper bound on the probes per trial in a sweep. */
+	private static final int MAX_SWEEP_PROBES = 10000000;
+	
+	/** Rough bytes per element and per probe that one sweep trial holds at once. */
+	private static final int SWEEP_BYTES_PER_ELEMENT = 96;
+	private static final int SWEEP_BYTES_PER_PROBE = 16;
+	
 	/**
-	 * Generates a random array of the given size.
+	 * Runs a sweep over large array sizes, checking against the offline
+	 * engine so no O(n log n) reference has to be built. Each trial uses the
+	 * next input distribution in turn. Fewer threads are used for sizes that
+	 * would otherwise not fit in the heap.
 	 * 
-	 * @param rand The random number source.
-	 * @param size The size of the array to generate.
-	 * @return An array of that size whose elements are randomly generated.
+	 * @param classname The name of the class under test.
+	 * @param sizes Comma-separated array sizes.
+	 * @param trialsPerSize The number of trials at each size.
+	 * @param seed The seed of the run.
 	 */
-	private static float[] randomArrayOfSize(Random rand, int size) {
-		float[] result = new float[size];
-		for (int i = 0; i < result.length; i++) {
-			result[i] = rand.nextFloat();
+	private static void runSweep(String classname, String sizes, int trialsPerSize, long seed) {
+		RMQFactory theirFactory = createRMQFactoryFor(classname);
+		InputDistribution[] inputs = InputDistribution.values();
+		for (String sizeArg : sizes.split(",")) {
+			int arrSize = Integer.parseInt(sizeArg.trim());
+			int probes = (int)Math.min(10L * arrSize, MAX_SWEEP_PROBES);
+			long bytesPerTrial = (long)arrSize * SWEEP_BYTES_PER_ELEMENT + (long)probes * SWEEP_BYTES_PER_PROBE;
+			int threads = (int)Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+					Runtime.getRuntime().maxMemory() / Math.max(1, bytesPerTrial)));
+			startTest("Sweep Size " + arrSize);
+			
+			List<DifferentialTester.Trial> trials = new ArrayList<DifferentialTester.Trial>();
+			for (int trialNum = 0; trialNum < trialsPerSize; trialNum++) {
+				trials.add(new DifferentialTester.Trial(DifferentialTester.deriveSeed(seed, arrSize, trialNum),
+						arrSize, inputs[trialNum % inputs.length], probes));
+			}
+			runTrials(new DifferentialTester(classname, theirFactory, null, threads), "size " + arrSize, trials);
 		}
-		return result;
 	}
 	
 	/**
-	 * Tests an RMQ structure against our reference by running the specified number of trials
-	 * on it. If any of the trials fail, the method triggers an assertion error.
+	 * Runs a batch of trials and reports how long they took.
 	 * 
-	 * @param theirs The student implementation.
-	 * @param ours Our own solution
-	 * @param elems The array of elements used by the RMQ structures.
-	 * @param rand A random generator to use for creating probes.
-	 * @param numTests The number of tests to run.
+	 * @param tester The tester to run them with.
+	 * @param description What the trials cover, for the report.
+	 * @param trials The trials.
 	 */
-	private static void testRMQ(RMQ theirs, RMQ ours, float[] elems, Random rand,
-			                    int numTests) {
-		for (int trialNum = 0; trialNum < numTests; trialNum++) {
-			/* Choose i and j for the probe. */
-			int i = rand.nextInt(elems.length);
-			int j = i + rand.nextInt(elems.length - i);
-			
-			/* Evaluate RMQ on the points. */
-			int ourSoln   = ours.rmq(i, j);
-			int theirSoln = theirs.rmq(i, j);
-			
-			/* Confirm the provided student output is valid. */
-			assert theirSoln >= 0 && theirSoln < elems.length : "RMQ(" + i + ", " + j + ") on array of length " + elems.length + " returned " + theirSoln;
-			assert elems[theirSoln] == elems[ourSoln] : "Your RMQ structure produced the wrong answer.";
-		}
+	private static void runTrials(DifferentialTester tester, String description,
+			                      List<DifferentialTester.Trial> trials) {
+		System.out.println("Testing " + description + " (" + trials.size() + " trials)");
+		long start = System.nanoTime();
+		tester.run(trials);
+		System.out.printf("Passed in %.1f s%n", (System.nanoTime() - start) / 1e9);
 	}
 }
@@ -0,0 +1,382 @@
+package driver;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Random;
+
+import rmq.*;
+
+/**
+ * Timing harnesses used by RMQDriver's report modes. Everything prints a
+ * short plain-text report to standard out.
+ */
+public class Benchmarks {
+	/** Number of passes over the trace before timing starts. */
+	private static final int WARMUP_PASSES = 3;
+
+	/**
+	 * Builds a structure over the trace's array and replays its queries,
+	 * reporting build time, throughput and per-query latency percentiles.
+	 *
+	 * @param name The name to print for the structure.
+	 * @param factory A factory for the structure under test.
+	 * @param trace The trace to replay.
+	 */
+	public static void runTrace(String name, RMQFactory factory, QueryTrace trace) {
+		float[] elems = trace.elems();
+		int[] is = trace.is();
+		int[] js = trace.js();
+		int count = trace.size();
+
+		long buildStart = System.nanoTime();
+		RMQ rmq = factory.create(Arrays.copyOf(elems, elems.length));
+		long buildNanos = System.nanoTime() - buildStart;
+
+		long checksum = 0;
+		for (int pass = 0; pass < WARMUP_PASSES; pass++) {
+			for (int q = 0; q < count; q++) {
+				checksum += rmq.rmq(is[q], js[q]);
+			}
+		}
+
+		/* Throughput from a plain pass, then latency from a pass timing each query. */
+		long runStart = System.nanoTime();
+		for (int q = 0; q < count; q++) {
+			checksum += rmq.rmq(is[q], js[q]);
+		}
+		long runNanos = System.nanoTime() - runStart;
+
+		long[] latencies = new long[count];
+		for (int q = 0; q < count; q++) {
+			long start = System.nanoTime();
+			checksum += rmq.rmq(is[q], js[q]);
+			latencies[q] = System.nanoTime() - start;
+		}
+		Arrays.sort(latencies);
+
+		System.out.println("structure:   " + name);
+		System.out.println("array size:  " + elems.length);
+		System.out.println("queries:     " + count);
+		System.out.printf("build:       %.3f ms%n", buildNanos / 1e6);
+		System.out.printf("throughput:  %.0f queries/s%n", count / (runNanos / 1e9));
+		System.out.println("latency p50: " + Percentile(latencies, 0.50) + " ns");
+		System.out.println("latency p99: " + Percentile(latencies, 0.99) + " ns");
+		System.out.println("latency max: " + (count == 0 ? 0 : latencies[count - 1]) + " ns");
+		System.out.println("checksum:    " + checksum);
+	}
+
+	/**
+	 * Compares the offline engine against building a structure and querying
+	 * it, over the same trace. Both must agree on the minimum value of every
+	 * query.
+	 *
+	 * @param name The name to print for the online structure.
+	 * @param factory A factory for the online structure.
+	 * @param trace The trace to answer.
+	 */
+	public static void runOffline(String name, RMQFactory factory, QueryTrace trace) {
+		float[] elems = trace.elems();
+		int[] is = trace.is();
+		int[] js = trace.js();
+		int count = trace.size();
+		int[] offline = new int[count];
+		int[] online = new int[count];
+
+		/* Warm up both paths once before timing. */
+		OfflineRMQ.solve(elems, is, js, offline);
+		AnswerAll(factory, elems, is, js, online);
+
+		long offlineStart = System.nanoTime();
+		OfflineRMQ.solve(elems, is, js, offline);
+		long offlineNanos = System.nanoTime() - offlineStart;
+
+		long onlineStart = System.nanoTime();
+		AnswerAll(factory, elems, is, js, online);
+		long onlineNanos = System.nanoTime() - onlineStart;
+
+		for (int q = 0; q < count; q++) {
+			if (elems[offline[q]] != elems[online[q]]) {
+				throw new AssertionError("Offline and " + name + " disagree on RMQ(" + is[q] + ", " + js[q] + ")");
+			}
+		}
+
+		System.out.println("structure:   " + name);
+		System.out.println("array size:  " + elems.length);
+		System.out.println("queries:     " + count);
+		System.out.printf("offline:     %.3f ms%n", offlineNanos / 1e6);
+		System.out.printf("build+query: %.3f ms%n", onlineNanos / 1e6);
+		System.out.println("results:     identical");
+	}
+
+	/**
+	 * Measures the memory cost of versions in PersistentRMQ. It applies
+	 * random point updates to a random array, checks a sample of versions
+	 * against a fresh structure, then keeps only the last few versions and
+	 * collects garbage.
+	 *
+	 * @param size The array size.
+	 * @param updates The number of updates, one new version each.
+	 * @param rand The random source.
+	 */
+	public static void runPersistent(int size, int updates, Random rand) {
+		float[] elems = InputDistribution.UNIFORM.generate(rand, size);
+		float[] checkpoint = null;
+		int checkpointVersion = updates / 2;
+		PersistentRMQ persistent = new PersistentRMQ(elems);
+		long baseBytes = persistent.memoryBytes();
+		int baseNodes = persistent.nodeCount();
+
+		long start = System.nanoTime();
+		for (int u = 0; u < updates; u++) {
+			int index = rand.nextInt(size);
+			elems[index] = rand.nextFloat();
+			if (persistent.update(index, elems[index]) == checkpointVersion) {
+				checkpoint = elems.clone();
+			}
+		}
+		long updateNanos = System.nanoTime() - start;
+
+		/* The checkpoint version must still match the array as it was then. */
+		if (checkpoint != null) {
+			RMQ reference = new SparseTableRMQ(checkpoint);
+			for (int q = 0; q < 10000; q++) {
+				int i = rand.nextInt(size);
+				int j = i + rand.nextInt(size - i);
+				if (checkpoint[persistent.rmq(checkpointVersion, i, j)] != checkpoint[reference.rmq(i, j)]) {
+					throw new AssertionError("Version " + checkpointVersion + " wrong on RMQ(" + i + ", " + j + ")");
+				}
+			}
+		}
+
+		int nodesBefore = persistent.nodeCount();
+		long bytesBefore = persistent.memoryBytes();
+		persistent.retainLatest(10);
+		persistent.collectGarbage();
+
+		long sparseBytes = (long)size * (31 - Integer.numberOfLeadingZeros(size) + 1) * Integer.BYTES;
+		System.out.println("array size:          " + size);
+		System.out.println("versions:            " + (updates + 1));
+		System.out.printf("update:              %.0f ns/version%n", (double)updateNanos / Math.max(1, updates));
+		System.out.println("base tree:           " + baseNodes + " nodes, " + baseBytes + " bytes");
+		System.out.printf("per version:         %.1f nodes, %.1f bytes%n",
+				(double)(nodesBefore - baseNodes) / Math.max(1, updates),
+				(double)(nodesBefore - baseNodes) * 16 / Math.max(1, updates));
+		System.out.println("SparseTableRMQ copy: " + sparseBytes + " bytes per version");
+		System.out.println("pool before gc:      " + nodesBefore + " nodes, " + bytesBefore + " bytes");
+		System.out.println("after keeping 10:    " + persistent.nodeCount() + " nodes, " + persistent.memoryBytes() + " bytes");
+	}
+
+	/**
+	 * Checks OffHeapRMQ on an array too large for a Java array. It writes
+	 * random floats to a scratch file, maps the file with fromFloatFile and
+	 * checks rmq(long, long) against a linear scan of the file on short
+	 * ranges anywhere, ranges across index 2^31, a few long ranges and the
+	 * whole array. The scratch file is deleted afterwards.
+	 *
+	 * @param file Where to write the scratch file.
+	 * @param size The number of elements, normally more than 2^31.
+	 * @param rand The random source.
+	 * @throws IOException If the file cannot be written or mapped.
+	 */
+	public static void runOffHeap(Path file, long size, Random rand) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 24).order(ByteOrder.LITTLE_ENDIAN);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			long start = System.nanoTime();
+			for (long pos = 0; pos < size; ) {
+				buffer.clear();
+				int count = (int)Math.min(buffer.capacity() / Float.BYTES, size - pos);
+				for (int e = 0; e < count; e++) buffer.putFloat(rand.nextFloat());
+				buffer.flip();
+				while (buffer.hasRemaining()) channel.write(buffer, pos * Float.BYTES + buffer.position());
+				pos += count;
+			}
+			System.out.printf("wrote %d floats in %.1f s%n", size, (System.nanoTime() - start) / 1e9);
+
+			start = System.nanoTime();
+			OffHeapRMQ rmq = OffHeapRMQ.fromFloatFile(file, ByteOrder.LITTLE_ENDIAN);
+			System.out.printf("built in %.1f s, index %d bytes%n", (System.nanoTime() - start) / 1e9, rmq.indexBytes());
+			if (rmq.length() != size) throw new AssertionError("length() is " + rmq.length() + ", not " + size);
+
+			long middle = Math.min(1L << 31, size / 2);
+			int checks = 0;
+			for (int q = 0; q < 1000; q++, checks++) {
+				long i = (long)(rand.nextDouble() * size);
+				CheckOffHeap(rmq, channel, buffer, i, Math.min(size - 1, i + rand.nextInt(1 << 16)));
+			}
+			for (int q = 0; q < 100; q++, checks++) {
+				long i = Math.max(0, middle - 1 - rand.nextInt(1 << 20));
+				CheckOffHeap(rmq, channel, buffer, i, Math.min(size - 1, middle + rand.nextInt(1 << 20)));
+			}
+			for (int q = 0; q < 4; q++, checks++) {
+				long i = (long)(rand.nextDouble() * size);
+				CheckOffHeap(rmq, channel, buffer, i, Math.min(size - 1, i + rand.nextInt(1 << 28)));
+			}
+			CheckOffHeap(rmq, channel, buffer, 0, size - 1);
+			checks++;
+			System.out.println(checks + " ranges match a linear scan.");
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	/**
+	 * Checks one query against a linear scan of the file.
+	 */
+	private static void CheckOffHeap(OffHeapRMQ rmq, FileChannel channel, ByteBuffer buffer,
+			                         long i, long j) throws IOException {
+		float min = Float.POSITIVE_INFINITY;
+		for (long pos = i; pos <= j; ) {
+			buffer.clear();
+			buffer.limit((int)Math.min(buffer.capacity(), (j - pos + 1) * Float.BYTES));
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, pos * Float.BYTES + buffer.position()) < 0) {
+					throw new AssertionError("File ends before index " + j);
+				}
+			}
+			buffer.flip();
+			while (buffer.hasRemaining()) min = Math.min(min, buffer.getFloat());
+			pos += buffer.limit() / Float.BYTES;
+		}
+		long answer = rmq.rmq(i, j);
+		if (answer < i || answer > j) {
+			throw new AssertionError("RMQ(" + i + ", " + j + ") returned " + answer + ", outside the range");
+		}
+		buffer.clear().limit(Float.BYTES);
+		while (buffer.hasRemaining()) channel.read(buffer, answer * Float.BYTES + buffer.position());
+		float value = buffer.getFloat(0);
+		if (value != min) {
+			throw new AssertionError("RMQ(" + i + ", " + j + ") returned index " + answer + " holding " +
+					value + ", but the minimum is " + min);
+		}
+	}
+
+	/**
+	 * Checks that building a structure makes a constant number of
+	 * allocations. The arrays reachable from the built structure are counted
+	 * and may number at most a fixed bound plus one per sparse table level,
+	 * so arrays kept per block or per Cartesian number fail. Their bytes are
+	 * then subtracted from the bytes the build allocated, and what is left,
+	 * temporaries and objects, must be the same at every size. Either
+	 * failure throws an AssertionError.
+	 *
+	 * @param name The name to print for the structure.
+	 * @param factory A factory for the structure.
+	 * @param rand The random source.
+	 */
+	public static void runAllocation(String name, RMQFactory factory, Random rand) {
+		com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		System.out.println("structure: " + name);
+		System.out.println("      size     allocated  arrays      bytes     other   build ms");
+		long minOther = Long.MAX_VALUE;
+		long maxOther = Long.MIN_VALUE;
+		for (int size = 1 << 16; size <= 1 << 24; size <<= 2) {
+			float[] elems = InputDistribution.UNIFORM.generate(rand, size);
+			factory.create(elems);  // warm up
+			long before = threads.getThreadAllocatedBytes(thread);
+			long start = System.nanoTime();
+			RMQ rmq = factory.create(elems);
+			long nanos = System.nanoTime() - start;
+			long bytes = threads.getThreadAllocatedBytes(thread) - before;
+			IdentityHashMap<Object, Object> seen = new IdentityHashMap<>();
+			long arrayBytes = ArrayBytes(rmq, rmq.getClass().getPackage(), seen);
+			int arrays = 0;
+			for (Object kept : seen.keySet()) {
+				if (kept.getClass().isArray()) arrays++;
+			}
+			long other = bytes - arrayBytes;
+			minOther = Math.min(minOther, other);
+			maxOther = Math.max(maxOther, other);
+			System.out.printf("%10d %13d %7d %10d %9d %10.1f%n", size, bytes, arrays, arrayBytes, other, nanos / 1e6);
+			// A sparse table over at most size entries has at most log2(size) + 1 levels
+			int maxArrays = FIXED_ARRAYS + 32 - Integer.numberOfLeadingZeros(size);
+			if (arrays > maxArrays) {
+				throw new AssertionError(name + " keeps " + arrays + " arrays at size " + size +
+						", more than " + maxArrays + " (" + FIXED_ARRAYS + " plus one per sparse table level)");
+			}
+		}
+		if (maxOther - minOther > ALLOCATION_SLACK) {
+			throw new AssertionError(name + " allocates " + (maxOther - minOther) +
+					" more bytes beyond its arrays at some sizes than at others");
+		}
+		System.out.println("The number of arrays and the allocations beyond them do not grow with size.");
+	}
+
+	/** Arrays a structure may keep besides one per sparse table level. */
+	private static final int FIXED_ARRAYS = 16;
+
+	/** Bytes by which allocations beyond the kept arrays may vary by size. */
+	private static final long ALLOCATION_SLACK = 4096;
+
+	/**
+	 * Sums the sizes of the primitive arrays reachable from an object through
+	 * its fields, following arrays of arrays and objects of the structure's
+	 * own package. Sizes assume a 16-byte array header and 8-byte alignment;
+	 * an error there is the same at every size, up to the count of arrays.
+	 */
+	private static long ArrayBytes(Object object, Package home, IdentityHashMap<Object, Object> seen) {
+		if (object == null || seen.put(object, object) != null) return 0;
+		Class<?> type = object.getClass();
+		if (type.isArray()) {
+			int length = Array.getLength(object);
+			Class<?> component = type.getComponentType();
+			long elementBytes = !component.isPrimitive() ? 4 :
+					component == long.class || component == double.class ? 8 :
+					component == int.class || component == float.class ? 4 :
+					component == short.class || component == char.class ? 2 : 1;
+			long bytes = (16 + length * elementBytes + 7) & ~7L;
+			if (!component.isPrimitive()) {
+				for (int e = 0; e < length; e++) bytes += ArrayBytes(Array.get(object, e), home, seen);
+			}
+			return bytes;
+		}
+		if (type.getPackage() != home) return 0;
+		long bytes = 0;
+		for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+			for (Field field : c.getDeclaredFields()) {
+				if (Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive()) continue;
+				field.setAccessible(true);
+				try {
+					bytes += ArrayBytes(field.get(object), home, seen);
+				} catch (IllegalAccessException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Builds a structure and answers every query with it.
+	 */
+	private static void AnswerAll(RMQFactory factory, float[] elems, int[] is, int[] js, int[] out) {
+		RMQ rmq = factory.create(Arrays.copyOf(elems, elems.length));
+		for (int q = 0; q < out.length; q++) {
+			out[q] = rmq.rmq(is[q], js[q]);
+		}
+	}
+
+	/**
+	 * Returns the given percentile of a sorted array.
+	 * @param sorted the sorted samples
+	 * @param p the percentile, between 0 and 1
+	 * @return the sample at that percentile, or 0 if there are none
+	 */
+	static long Percentile(long[] sorted, double p) {
+		if (sorted.length == 0) return 0;
+		return sorted[(int)Math.min(sorted.length - 1, (long)(p * sorted.length))];
+	}
+}
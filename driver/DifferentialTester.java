@@ -0,0 +1,178 @@
+package driver;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rmq.*;
+
+/**
+ * Runs an RMQ implementation against a reference over many independent
+ * trials, spread across several threads. Every trial draws its array and
+ * probes from its own seed, so any failure can be rerun on its own from the
+ * (seed, size, input) triple printed in the report.
+ */
+public class DifferentialTester {
+	/**
+	 * One trial: an array of the given size and distribution, generated from
+	 * seed, followed by probes random (i, j) pairs from the same generator.
+	 */
+	public static class Trial {
+		public final long seed;
+		public final int size;
+		public final InputDistribution input;
+		public final int probes;
+
+		public Trial(long seed, int size, InputDistribution input, int probes) {
+			this.seed = seed;
+			this.size = size;
+			this.input = input;
+			this.probes = probes;
+		}
+	}
+
+	private final String className;
+	private final RMQFactory theirFactory;
+	private final RMQFactory referenceFactory;
+	private final int threads;
+
+	/**
+	 * Creates a tester.
+	 *
+	 * @param className The name of the class under test, for reports.
+	 * @param theirFactory A factory for the structure under test.
+	 * @param referenceFactory A factory for reference structures, or null to
+	 *        check against OfflineRMQ, which needs only linear memory.
+	 * @param threads The number of worker threads.
+	 */
+	public DifferentialTester(String className, RMQFactory theirFactory,
+			                  RMQFactory referenceFactory, int threads) {
+		this.className = className;
+		this.theirFactory = theirFactory;
+		this.referenceFactory = referenceFactory;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Derives the seed of one trial from the run's seed, so that trials do
+	 * not depend on the order in which they run. This is the SplitMix64
+	 * finalizer applied to the mixed inputs.
+	 *
+	 * @param seed The seed of the whole run.
+	 * @param size The array size of the trial.
+	 * @param trial The trial's number within its size.
+	 * @return The trial's seed.
+	 */
+	public static long deriveSeed(long seed, int size, int trial) {
+		long z = seed + 0x9e3779b97f4a7c15L * (((long)size << 32) + trial + 1);
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Runs every trial. If any fails, or throws anything at all, the failure
+	 * with the lowest position in the list is reported as an AssertionError
+	 * naming the trial's seed, size, input and the failing (i, j).
+	 *
+	 * @param trials The trials to run.
+	 */
+	public void run(final List<Trial> trials) {
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger firstFailure = new AtomicInteger(Integer.MAX_VALUE);
+		final String[] reports = new String[trials.size()];
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			workers[t] = new Thread(() -> {
+				while (true) {
+					int index = next.getAndIncrement();
+					if (index >= trials.size() || index > firstFailure.get()) return;
+					Trial trial = trials.get(index);
+					String report;
+					try {
+						report = runTrial(trial);
+					} catch (Throwable e) {
+						/* Generating the trial or building the reference failed. */
+						report = Report(trial, -1, -1, "could not run the trial: " + e);
+					}
+					if (report != null) {
+						reports[index] = report;
+						firstFailure.accumulateAndGet(index, Math::min);
+					}
+				}
+			}, "rmq-tester-" + t);
+			workers[t].start();
+		}
+		for (Thread worker : workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new AssertionError("Interrupted while testing");
+			}
+		}
+		if (firstFailure.get() != Integer.MAX_VALUE) {
+			throw new AssertionError(reports[firstFailure.get()]);
+		}
+	}
+
+	/**
+	 * Runs a single trial.
+	 *
+	 * @param trial The trial to run.
+	 * @return null if it passed, or a report of the first bad probe.
+	 */
+	public String runTrial(Trial trial) {
+		Random rand = new Random(trial.seed);
+		int size = trial.size;
+		float[] elems = trial.input.generate(rand, size);
+		int probes = size == 0 ? 0 : trial.probes;
+		int[] is = new int[probes];
+		int[] js = new int[probes];
+		for (int q = 0; q < probes; q++) {
+			is[q] = rand.nextInt(size);
+			js[q] = is[q] + rand.nextInt(size - is[q]);
+		}
+
+		int[] expected = new int[probes];
+		if (referenceFactory == null) {
+			OfflineRMQ.solve(elems, is, js, expected);
+		} else {
+			RMQ reference = referenceFactory.create(Arrays.copyOf(elems, size));
+			for (int q = 0; q < probes; q++) {
+				expected[q] = reference.rmq(is[q], js[q]);
+			}
+		}
+
+		int q = -1;
+		try {
+			RMQ theirs = theirFactory.create(Arrays.copyOf(elems, size));
+			for (q = 0; q < probes; q++) {
+				int theirSoln = theirs.rmq(is[q], js[q]);
+				if (theirSoln < is[q] || theirSoln > js[q]) {
+					return Report(trial, is[q], js[q], "returned " + theirSoln + ", outside the range");
+				}
+				if (elems[theirSoln] != elems[expected[q]]) {
+					return Report(trial, is[q], js[q], "returned index " + theirSoln + " holding " + elems[theirSoln] +
+							", but the minimum is " + elems[expected[q]] + " at index " + expected[q]);
+				}
+			}
+		} catch (RuntimeException | Error e) {
+			if (q < 0 || q >= probes) return Report(trial, -1, -1, "threw " + e + " while building");
+			return Report(trial, is[q], js[q], "threw " + e);
+		}
+		return null;
+	}
+
+	/**
+	 * Formats a failure with everything needed to rerun it.
+	 */
+	private String Report(Trial trial, int i, int j, String problem) {
+		String where = i < 0 ? "" : "RMQ(" + i + ", " + j + ") ";
+		return className + " failed: " + where + problem + "\n" +
+			   "  trial: seed=" + trial.seed + " size=" + trial.size + " input=" + trial.input + "\n" +
+			   "  rerun: java -ea RMQDriver --trial " + className + " " + trial.seed + " " +
+			   trial.size + " " + trial.input + " " + trial.probes;
+	}
+}
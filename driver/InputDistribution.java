@@ -0,0 +1,83 @@
+package driver;
+
+import java.util.Random;
+
+/**
+ * Shapes of input array used when generating workloads. Production series
+ * are rarely uniform noise, so these cover the sorted, near-sorted and
+ * tie-heavy cases as well.
+ */
+public enum InputDistribution {
+	/** Independent uniform floats in [0, 1), as in the original tests. */
+	UNIFORM {
+		@Override
+		public float[] generate(Random rand, int size) {
+			float[] result = new float[size];
+			for (int i = 0; i < size; i++) {
+				result[i] = rand.nextFloat();
+			}
+			return result;
+		}
+	},
+	/** Non-decreasing values with runs of equal elements. */
+	SORTED {
+		@Override
+		public float[] generate(Random rand, int size) {
+			float[] result = new float[size];
+			float value = 0;
+			for (int i = 0; i < size; i++) {
+				if (rand.nextInt(4) == 0) value += 1;
+				result[i] = value;
+			}
+			return result;
+		}
+	},
+	/** Sorted values where about one element in a hundred is displaced. */
+	NEAR_SORTED {
+		@Override
+		public float[] generate(Random rand, int size) {
+			float[] result = SORTED.generate(rand, size);
+			for (int swaps = size / 100; swaps > 0; swaps--) {
+				int i = rand.nextInt(size);
+				int j = Math.min(size - 1, i + 1 + rand.nextInt(16));
+				float tmp = result[i];
+				result[i] = result[j];
+				result[j] = tmp;
+			}
+			return result;
+		}
+	},
+	/** Values drawn from only a handful of levels, so almost every query has ties. */
+	FEW_DISTINCT {
+		@Override
+		public float[] generate(Random rand, int size) {
+			float[] result = new float[size];
+			for (int i = 0; i < size; i++) {
+				result[i] = rand.nextInt(8);
+			}
+			return result;
+		}
+	},
+	/** A random walk, which looks like a price or sensor series. */
+	RANDOM_WALK {
+		@Override
+		public float[] generate(Random rand, int size) {
+			float[] result = new float[size];
+			float value = 0;
+			for (int i = 0; i < size; i++) {
+				value += (float)rand.nextGaussian();
+				result[i] = value;
+			}
+			return result;
+		}
+	};
+
+	/**
+	 * Generates an array of the given size.
+	 *
+	 * @param rand The random number source.
+	 * @param size The size of the array to generate.
+	 * @return The generated array.
+	 */
+	public abstract float[] generate(Random rand, int size);
+}
@@ -0,0 +1,75 @@
+package driver;
+
+import java.util.Random;
+
+/**
+ * Shapes of query stream used when generating workloads.
+ */
+public enum QueryDistribution {
+	/** i uniform, then j uniform in [i, n), as in the original tests. */
+	UNIFORM {
+		@Override
+		protected void next(Random rand, int n, int[] state) {
+			state[0] = rand.nextInt(n);
+			state[1] = state[0] + rand.nextInt(n - state[0]);
+		}
+	},
+	/** Uniform start with geometrically distributed lengths, mean about 16. */
+	SHORT {
+		@Override
+		protected void next(Random rand, int n, int[] state) {
+			state[0] = rand.nextInt(n);
+			state[1] = Math.min(n - 1, state[0] + ShortLength(rand));
+		}
+	},
+	/**
+	 * Short ranges whose start drifts by a small random step from the last
+	 * query, which gives heavy locality.
+	 */
+	LOCAL {
+		@Override
+		protected void next(Random rand, int n, int[] state) {
+			int step = rand.nextInt(129) - 64;
+			state[0] = Math.floorMod(state[0] + step, n);
+			state[1] = Math.min(n - 1, state[0] + ShortLength(rand));
+		}
+	};
+
+	/**
+	 * Draws a range length from a geometric distribution with mean about 16.
+	 * @param rand the random source
+	 * @return a non-negative length
+	 */
+	private static int ShortLength(Random rand) {
+		return (int)(-16 * Math.log(1 - rand.nextDouble()));
+	}
+
+	/**
+	 * Produces the next query, storing i and j in state[0] and state[1]. The
+	 * previous query is still in state on entry.
+	 */
+	protected abstract void next(Random rand, int n, int[] state);
+
+	/**
+	 * Generates a trace of queries over the given array.
+	 *
+	 * @param rand The random number source.
+	 * @param elems The array the queries run against.
+	 * @param count The number of queries.
+	 * @return The trace.
+	 */
+	public QueryTrace generate(Random rand, float[] elems, int count) {
+		int[] is = new int[count];
+		int[] js = new int[count];
+		int[] state = new int[2];
+		if (elems.length > 0) {
+			state[0] = rand.nextInt(elems.length);
+			for (int q = 0; q < count; q++) {
+				next(rand, elems.length, state);
+				is[q] = state[0];
+				js[q] = state[1];
+			}
+		}
+		return new QueryTrace(elems, is, js);
+	}
+}
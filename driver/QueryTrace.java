@@ -0,0 +1,115 @@
+package driver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * An array together with a sequence of (i, j) queries against it. Traces can
+ * be generated, captured from a live structure with RecordingRMQ, and saved
+ * to or loaded from a binary file.
+ * <p>
+ * The file format is big-endian: the magic number, a format version, the
+ * array length followed by the elements, then the query count followed by
+ * the (i, j) pairs.
+ */
+public class QueryTrace {
+	private static final int MAGIC = 0x524d5154;  // "RMQT"
+	private static final int VERSION = 1;
+
+	private final float[] elems;
+	private final int[] is;
+	private final int[] js;
+
+	/**
+	 * Creates a trace. The arrays are used directly, not copied.
+	 *
+	 * @param elems The array the queries run against.
+	 * @param is The lower ends of the queries.
+	 * @param js The upper ends of the queries.
+	 */
+	public QueryTrace(float[] elems, int[] is, int[] js) {
+		if (is.length != js.length) {
+			throw new IllegalArgumentException("Query endpoint arrays differ in length");
+		}
+		this.elems = elems;
+		this.is = is;
+		this.js = js;
+	}
+
+	public float[] elems() {
+		return elems;
+	}
+
+	public int[] is() {
+		return is;
+	}
+
+	public int[] js() {
+		return js;
+	}
+
+	public int size() {
+		return is.length;
+	}
+
+	/**
+	 * Writes the trace to a file, replacing it if it exists.
+	 *
+	 * @param path The file to write.
+	 * @throws IOException If the file cannot be written.
+	 */
+	public void write(Path path) throws IOException {
+		try (OutputStream file = Files.newOutputStream(path);
+			 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(elems.length);
+			for (float elem : elems) {
+				out.writeFloat(elem);
+			}
+			out.writeInt(is.length);
+			for (int q = 0; q < is.length; q++) {
+				out.writeInt(is[q]);
+				out.writeInt(js[q]);
+			}
+		}
+	}
+
+	/**
+	 * Reads a trace previously written with write.
+	 *
+	 * @param path The file to read.
+	 * @return The trace.
+	 * @throws IOException If the file cannot be read or is not a trace.
+	 */
+	public static QueryTrace read(Path path) throws IOException {
+		try (InputStream file = Files.newInputStream(path);
+			 DataInputStream in = new DataInputStream(new BufferedInputStream(file, 1 << 16))) {
+			if (in.readInt() != MAGIC) throw new IOException(path + " is not a query trace");
+			int version = in.readInt();
+			if (version != VERSION) throw new IOException("Unsupported trace version " + version);
+			float[] elems = new float[in.readInt()];
+			for (int i = 0; i < elems.length; i++) {
+				elems[i] = in.readFloat();
+			}
+			int count = in.readInt();
+			int[] is = new int[count];
+			int[] js = new int[count];
+			for (int q = 0; q < count; q++) {
+				is[q] = in.readInt();
+				js[q] = in.readInt();
+				if (is[q] < 0 || is[q] > js[q] || js[q] >= elems.length) {
+					throw new IOException("Query " + q + " out of range: (" + is[q] + ", " + js[q] + ")");
+				}
+			}
+			return new QueryTrace(elems, is, js);
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package driver;
+
+import java.util.Arrays;
+
+import rmq.*;
+
+/**
+ * An RMQ that forwards every query to another structure and records it, so
+ * a real query stream can be captured and replayed later as a QueryTrace.
+ */
+public class RecordingRMQ implements RMQ {
+	private final RMQ delegate;
+	private final float[] elems;
+	private int[] is = new int[1024];
+	private int[] js = new int[1024];
+	private int count;
+
+	/**
+	 * Wraps an existing structure.
+	 *
+	 * @param delegate The structure that answers the queries.
+	 * @param elems The array the structure was built over.
+	 */
+	public RecordingRMQ(RMQ delegate, float[] elems) {
+		this.delegate = delegate;
+		this.elems = elems;
+	}
+
+	@Override
+	public synchronized int rmq(int i, int j) {
+		if (count == is.length) {
+			is = Arrays.copyOf(is, 2 * count);
+			js = Arrays.copyOf(js, 2 * count);
+		}
+		is[count] = i;
+		js[count] = j;
+		count++;
+		return delegate.rmq(i, j);
+	}
+
+	/**
+	 * Returns the queries recorded so far as a trace.
+	 *
+	 * @return The captured trace.
+	 */
+	public synchronized QueryTrace toTrace() {
+		return new QueryTrace(elems, Arrays.copyOf(is, count), Arrays.copyOf(js, count));
+	}
+}
@@ -0,0 +1,264 @@
+package rmq;
+
+/**
+ * An &lt;O(nk), O(k)&gt; Fischer-Heun RMQ over k aligned columns that answers
+ * the same range for every column at once. All columns share one block
+ * layout, so a query works out its blocks, in-block offsets and sparse table
+ * level once and then just loops over the columns.
+ * <p>
+ * Everything is stored interleaved by column: the elements as [row][column],
+ * the Cartesian numbers as [block][column] and the sparse table as
+ * [level][block][column], with one array per level so that no index exceeds
+ * the n*k elements. The per-column reads of one query therefore sit next to
+ * each other in memory.
+ */
+public class ColumnarRMQ {
+	private float[] elements;  // elements[row*k + column]
+	private int n;  // rows
+	private int k;  // columns
+	private int b;  // size of blocks
+	private int blocks;
+	private int[] logs;  // over block counts
+	private int[] cartesians;  // cartesians[block*k + column]
+	private int[][] cartesianTables;  // in-block offsets, indexed by start*b + end
+	private int[][] sparseTable;  // sparseTable[level][block*k + column], holds rows
+
+	/**
+	 * Creates a new ColumnarRMQ over the given columns, which must all have
+	 * the same length.
+	 *
+	 * @param columns The columns, one float array each.
+	 */
+	public ColumnarRMQ(float[][] columns) {
+		k = columns.length;
+		n = k == 0 ? 0 : columns[0].length;
+		if ((long)n * k > Integer.MAX_VALUE) throw new IllegalArgumentException("Too many elements");
+		elements = new float[n*k];
+		for (int c = 0; c < k; c++) {
+			if (columns[c].length != n) throw new IllegalArgumentException("Column " + c + " has a different length");
+			for (int row = 0; row < n; row++) {
+				elements[row*k + c] = columns[c][row];
+			}
+		}
+		if (n == 0) return;
+		b = (int)(Math.log(n) / (4*Math.log(2)));
+		// If b = 0, just linear pass through it
+		if (b < 1) return;
+		blocks = (n + b - 1) / b;
+		CalculateLogs();
+		InitializeCartesians();
+		BuildSparseTable();
+	}
+
+	/**
+	 * Returns the number of rows.
+	 *
+	 * @return the column length
+	 */
+	public int length() {
+		return n;
+	}
+
+	/**
+	 * Returns the number of columns.
+	 *
+	 * @return the column count
+	 */
+	public int columns() {
+		return k;
+	}
+
+	private float Value(int row, int column) {
+		return elements[row*k + column];
+	}
+
+	/**
+	 * Helper function for getting which row holds the smaller value in a
+	 * column.
+	 */
+	private int MinRow(int row1, int row2, int column) {
+		return Value(row1, column) <= Value(row2, column) ? row1 : row2;
+	}
+
+	/**
+	 * Constructs an array that at each index i holds the largest value l such
+	 * that 2^l is less than or equal to i + 1.
+	 */
+	private void CalculateLogs() {
+		logs = new int[blocks];
+		for (int i = 1; i < blocks; i++) {
+			logs[i] = 31 - Integer.numberOfLeadingZeros(i + 1);
+		}
+	}
+
+	/**
+	 * Computes the Cartesian number of every block of every column, and
+	 * builds one in-block table per distinct number.
+	 */
+	private void InitializeCartesians() {
+		cartesians = new int[blocks*k];
+		cartesianTables = new int[1 << (2*b)][];
+		int[] stack = new int[b];
+		for (int block = 0; block < blocks; block++) {
+			int start = block*b;
+			int end = Math.min(n, start + b);
+			for (int c = 0; c < k; c++) {
+				int cartesian = 0;
+				int top = 0;
+				for (int row = start; row < end; row++) {
+					while (top > 0 && Value(row, c) < Value(stack[top-1], c)) {
+						top--;
+						cartesian = 2*cartesian;
+					}
+					stack[top++] = row;
+					cartesian = 2*cartesian + 1;
+				}
+				cartesian <<= top;
+				cartesians[block*k + c] = cartesian;
+				if (cartesianTables[cartesian] == null) {
+					cartesianTables[cartesian] = BuildTable(start, end, c);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Precomputes every in-block answer for one block of one column.
+	 * @return offsets of the minimum, indexed by start*b + end
+	 */
+	private int[] BuildTable(int start, int end, int column) {
+		int[] table = new int[b*b];
+		int len = end - start;
+		for (int s = 0; s < len; s++) {
+			int min = s;
+			for (int e = s; e < len; e++) {
+				if (Value(start + e, column) < Value(start + min, column)) min = e;
+				table[s*b + e] = min;
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * Builds the interleaved sparse table over block minima. Level l holds
+	 * only the blocks - 2^l + 1 intervals that fit, so each level is at most
+	 * blocks*k ints.
+	 */
+	private void BuildSparseTable() {
+		int levels = logs[blocks - 1] + 1;
+		sparseTable = new int[levels][];
+		sparseTable[0] = new int[blocks*k];
+		for (int block = 0; block < blocks; block++) {
+			int start = block*b;
+			int last = Math.min(n, start + b) - 1 - start;
+			for (int c = 0; c < k; c++) {
+				sparseTable[0][block*k + c] = start + cartesianTables[cartesians[block*k + c]][last];
+			}
+		}
+		for (int level = 1; level < levels; level++) {
+			int half = 1 << (level - 1);
+			int[] below = sparseTable[level - 1];
+			int[] table = new int[(blocks - 2*half + 1)*k];
+			for (int block = 0; block + 2*half <= blocks; block++) {
+				int at = block*k;
+				int from2 = (block + half)*k;
+				for (int c = 0; c < k; c++) {
+					table[at + c] = MinRow(below[at + c], below[from2 + c], c);
+				}
+			}
+			sparseTable[level] = table;
+		}
+	}
+
+	/**
+	 * Evaluates RMQ(i, j) for every column at once.
+	 *
+	 * @param i The lower end of the range, inclusive.
+	 * @param j The upper end of the range, inclusive.
+	 * @param out Receives, at each column index, the row of that column's
+	 *        minimum over [i, j].
+	 */
+	public void rmqAll(int i, int j, int[] out) {
+		if (b < 1) {
+			for (int c = 0; c < k; c++) {
+				out[c] = LinearPass(i, j, c);
+			}
+			return;
+		}
+		int iBlock = i/b;
+		int jBlock = j/b;
+		int iOff = i - iBlock*b;
+		int jOff = j - jBlock*b;
+		int iBase = iBlock*b;
+		int jBase = jBlock*b;
+		int iCart = iBlock*k;
+		int jCart = jBlock*k;
+		if (iBlock == jBlock) {
+			int cell = iOff*b + jOff;
+			for (int c = 0; c < k; c++) {
+				out[c] = iBase + cartesianTables[cartesians[iCart + c]][cell];
+			}
+			return;
+		}
+		int firstCell = iOff*b + (b - 1);
+		int lastCell = jOff;
+		int topi = iBlock + 1;
+		int topj = jBlock - 1;
+		if (topj < topi) {
+			for (int c = 0; c < k; c++) {
+				int first = iBase + cartesianTables[cartesians[iCart + c]][firstCell];
+				int last = jBase + cartesianTables[cartesians[jCart + c]][lastCell];
+				out[c] = MinRow(first, last, c);
+			}
+			return;
+		}
+		int level = logs[topj - topi];
+		int[] table = sparseTable[level];
+		int top1 = topi*k;
+		int top2 = (topj - (1 << level) + 1)*k;
+		for (int c = 0; c < k; c++) {
+			int first = iBase + cartesianTables[cartesians[iCart + c]][firstCell];
+			int last = jBase + cartesianTables[cartesians[jCart + c]][lastCell];
+			int top = MinRow(table[top1 + c], table[top2 + c], c);
+			out[c] = MinRow(MinRow(first, last, c), top, c);
+		}
+	}
+
+	/**
+	 * Evaluates RMQ(i, j) for a single column.
+	 *
+	 * @param column The column to query.
+	 * @param i The lower end of the range, inclusive.
+	 * @param j The upper end of the range, inclusive.
+	 * @return The row of the column's minimum over [i, j].
+	 */
+	public int rmq(int column, int i, int j) {
+		if (b < 1) return LinearPass(i, j, column);
+		int iBlock = i/b;
+		int jBlock = j/b;
+		if (iBlock == jBlock) {
+			return iBlock*b + cartesianTables[cartesians[iBlock*k + column]][(i - iBlock*b)*b + (j - jBlock*b)];
+		}
+		int first = iBlock*b + cartesianTables[cartesians[iBlock*k + column]][(i - iBlock*b)*b + (b - 1)];
+		int last = jBlock*b + cartesianTables[cartesians[jBlock*k + column]][j - jBlock*b];
+		int best = MinRow(first, last, column);
+		int topi = iBlock + 1;
+		int topj = jBlock - 1;
+		if (topj < topi) return best;
+		int level = logs[topj - topi];
+		int top = MinRow(sparseTable[level][topi*k + column],
+				sparseTable[level][(topj - (1 << level) + 1)*k + column], column);
+		return MinRow(best, top, column);
+	}
+
+	/**
+	 * Simple linear-time rmq query on one column.
+	 */
+	private int LinearPass(int i, int j, int column) {
+		int minRow = i;
+		for (int row = i + 1; row <= j; row++) {
+			minRow = MinRow(minRow, row, column);
+		}
+		return minRow;
+	}
+}
@@ -1,70 +1,33 @@
 package rmq;
 
-import java.util.ArrayList;
-import java.util.Stack;
+import java.util.Arrays;
 
 /**
  * An &lt;O(n), O(1)&gt; implementation of the Fischer-Heun RMQ data structure.
+ * <p>
+ * The build allocates a fixed set of primitive arrays plus one per sparse
+ * table level: Cartesian numbers come from one reusable int stack, and every
+ * in-block table lives in a single preallocated arena.
  */
 public class FischerHeunRMQ implements RMQ {
 	private int[] top;
 	private int[] bottom;
 	private float[] elements;
 	private int[] logs;  // compute once for time efficiency
-	private ArrayList<Integer> powers;  // compute once for time efficiency
-	private int[][] sparseTable;
+	private int[] powers;  // compute once for time efficiency
+	private int[][] sparseTable;  // sparseTable[k][start], one array per level
+	private int levels;  // levels in the sparse table
 	private int n;  // size of array
 	private int b;  // size of blocks
 	private int blocks;
-	private RMQStructure[] cartesianRMQs;
-	private int[] cartesians;
+	private byte[] tableArena;  // b*b in-block answers per distinct Cartesian number
+	private int[] cartesianSlots;  // arena offset for each Cartesian number, -1 if none yet
+	private int arenaUsed;
+	private int[] blockTables;  // arena offset of each block's table
+	private int[] stack;  // reused by CartesianNumber
+	private int[] prevSmallers;  // only set by precomputeNearestSmaller
+	private int[] nextSmallers;
 
-	/**
-	 * Structure holding precomputed rmqs. Arrays structed the same way (with the same
-	 * cartesian number) have the same structure, thus can save on time and space by 
-	 * storing RMQ structures.
-	 * @author jirvine
-	 *
-	 */
-	private class RMQStructure {
-		private int[][] rmqs;
-
-		/**
-		 * Constructor. Builds a precomputed RMQ structure from array between i and j.
-		 * @param i start index
-		 * @param j end index
-		 */
-		public RMQStructure(int i, int j) {
-			int numElems = j - i + 1;
-			rmqs = new int[numElems][numElems];
-			// Build graph by diagonals, starting with main diagonal
-			// Initialize main diagonal
-			for (int k = 0; k < numElems; k++) {
-				rmqs[k][k] = k;
-			}
-			// Dynamically build rest of table
-			for (int k = 0; k < numElems; k++) {
-				for (int l = k+1; l < numElems; l++) {
-					if (elements[rmqs[k][l-1] + i] <= elements[i+l]) {
-						rmqs[k][l] = rmqs[k][l-1];
-					} else {
-						rmqs[k][l] = l;
-					}
-				}
-			}
-		}
-		
-		/**
-		 * Query between indices
-		 * @param k start index
-		 * @param l end index
-		 * @return the minimum index
-		 */
-		public int RMQ(int k, int l) {
-			return rmqs[k][l];
-		}
-	};
-	
 	/**
 	 * Helper functions for cartesian number calculation.
 	 * @param x
@@ -79,76 +42,118 @@ public class FischerHeunRMQ implements RMQ {
 	}
 	
 	/**
-	 * Finds cartesian number for array between indices.
+	 * Finds cartesian number for array between indices. Afterwards stack[0]
+	 * holds the leftmost minimum of the range, since an index is only popped
+	 * by a strictly smaller one.
 	 * @param i start index
 	 * @param j end index
 	 * @return cartesian number
 	 */
 	private int CartesianNumber(int i, int j) {
 		int cartesian = 0;
-		Stack<Integer> stack = new Stack<Integer>();
-		stack.push(i);
+		int size = 0;
+		stack[size++] = i;
 		cartesian = add1right(cartesian);
 		// Calculate the cartesian number using stack algorithm. Each is pushed
 		// on stack once and popped off once, thus linear time.
 		for (int k = i+1; k <= j; k++) {
-			while (!stack.isEmpty() && elements[k] < elements[stack.peek()]) {
-				stack.pop();
+			while (size > 0 && elements[k] < elements[stack[size-1]]) {
+				size--;
 				cartesian = add0right(cartesian);
 			}
-			stack.push(k);
+			stack[size++] = k;
 			cartesian = add1right(cartesian);
 		}
-		while (!stack.isEmpty()) {
-			stack.pop();
-			cartesian = add0right(cartesian);
+		// Pop whatever is left, without disturbing stack[0]
+		return cartesian << size;
+	}
+
+	/**
+	 * Returns the number of distinct Cartesian numbers a block can have:
+	 * Catalan(b) for full blocks plus Catalan(b-1) for a shorter last block,
+	 * which bounds the number of in-block tables.
+	 */
+	private int MaxTables() {
+		long[] catalan = new long[b + 1];
+		catalan[0] = 1;
+		for (int k = 1; k <= b; k++) {
+			catalan[k] = catalan[k-1] * 2 * (2*k - 1) / (k + 1);
 		}
-		return cartesian;
+		return (int)(catalan[b] + catalan[b-1]);
 	}
-	
+
 	/**
-	 * Initialize cartesian numbers for each block and all possible rmq structures.
+	 * Writes the precomputed answers for the block between i and j into the
+	 * arena. Blocks with the same Cartesian number share the table.
+	 * @param i start index
+	 * @param j end index
+	 * @return the arena offset of the table
 	 */
-	private void InitializeCartesians() {
-		cartesians = new int[blocks];
-		cartesianRMQs = new RMQStructure[powers.get(2*b)];
-		for (int block = 0; block < blocks; block++) {
-			int i = block*b;
-			int j = Math.min(n-1, (block+1)*b - 1);
-			int c = CartesianNumber(i, j);
-			cartesians[block] = c;
-			if (cartesianRMQs[c] == null) {
-				cartesianRMQs[c] = new RMQStructure(i, j);
+	private int BuildTable(int i, int j) {
+		int offset = arenaUsed;
+		arenaUsed += b*b;
+		int numElems = j - i + 1;
+		// Build graph by diagonals, starting with main diagonal
+		for (int k = 0; k < numElems; k++) {
+			tableArena[offset + k*b + k] = (byte)k;
+		}
+		// Dynamically build rest of table
+		for (int k = 0; k < numElems; k++) {
+			for (int l = k+1; l < numElems; l++) {
+				int prev = tableArena[offset + k*b + l-1];
+				if (elements[prev + i] <= elements[i+l]) {
+					tableArena[offset + k*b + l] = (byte)prev;
+				} else {
+					tableArena[offset + k*b + l] = (byte)l;
+				}
 			}
 		}
+		return offset;
 	}
 
 	/**
-	 * Helper function for getting which index has the minimum value in 
-	 * the array
-	 * @param index1 the first index in question
-	 * @param index2 the second
-	 * @return the index that represents the min
+	 * Computes a block's minimum and Cartesian number in one pass over it,
+	 * building its in-block table if the number is new.
+	 * @param block the block
 	 */
-	private int MinIndex(int index1, int index2) {
-		return elements[index1] <= elements[index2] ? index1 : index2;
+	private void InitializeBlock(int block) {
+		int i = block*b;
+		int j = Math.min(n-1, (block+1)*b - 1);
+		int c = CartesianNumber(i, j);
+		top[block] = stack[0];
+		if (cartesianSlots[c] < 0) {
+			cartesianSlots[c] = BuildTable(i, j);
+		}
+		blockTables[block] = cartesianSlots[c];
 	}
 
 	/**
-	 * Initializes top blocks to hold mins of each block. Linear time.
+	 * Initializes top minima, Cartesian numbers and in-block tables for every
+	 * block. Linear time, and the number of allocations does not depend on n.
 	 */
-	private void InitializeTop() {
+	private void InitializeBlocks() {
 		top = new int[blocks];
+		blockTables = new int[blocks];
+		stack = new int[b];
+		cartesianSlots = new int[1 << (2*b)];
+		Arrays.fill(cartesianSlots, -1);
+		tableArena = new byte[MaxTables() * b*b];
 		for (int block = 0; block < blocks; block++) {
-			int start = block*b;
-			int minIndex = start;
-			for (int i = start; i < Math.min(start + b, n); i++) {
-				minIndex = MinIndex(minIndex, i);
-			}
-			top[block] = minIndex;
+			InitializeBlock(block);
 		}
 	}
 
+	/**
+	 * Helper function for getting which index has the minimum value in 
+	 * the array
+	 * @param index1 the first index in question
+	 * @param index2 the second
+	 * @return the index that represents the min
+	 */
+	private int MinIndex(int index1, int index2) {
+		return elements[index1] <= elements[index2] ? index1 : index2;
+	}
+
 	private void InitializeBottom() {
 		bottom = new int[n];
 		for (int i=0; i < n; i++) {
@@ -156,11 +161,6 @@ public class FischerHeunRMQ implements RMQ {
 		}
 	}
 
-	private void InitializeTopAndBottom() {
-		InitializeTop();
-		InitializeBottom();
-	}	
-
 	/**
 	 * Constructs an array that at each index i holds the largest value k such
 	 * that 2^k is less than or equal to i + 1
@@ -188,35 +188,35 @@ public class FischerHeunRMQ implements RMQ {
 	 * @n the max that 2^i can go up to 
 	 */
 	private void CalculatePowers() {
-		powers = new ArrayList<Integer>();
-		int power = 1;
-		while (power <= n) {
-			powers.add(power);
-			power *= 2;
+		powers = new int[logs[n-1] + 1];
+		for (int k = 0; k < powers.length; k++) {
+			powers[k] = 1 << k;
 		}
 	}
 
 	/**
-	 * Builds a sparse table dynamically in linear time.
+	 * Builds a sparse table dynamically in linear time. Each level is its own
+	 * array, holding only the intervals that fit, so no index overflows an
+	 * int however large the input.
 	 */
 	private void BuildSparseTable() {
 		// Construct sparse table for top layer
 		int m = top.length;
 		if (m == 0) return;
 		int logm = (int)(Math.log(m) / Math.log(2));
-		sparseTable = new int[m][logm+1];
-		// Initialize first column of table
-		for (int start = 0; start < m; start++) {
-			sparseTable[start][0] = top[start];
-		}
+		levels = logm + 1;
+		sparseTable = new int[levels][];
+		// Initialize first level of table
+		sparseTable[0] = Arrays.copyOf(top, m);
 		// Build dynamically
-		for (int k = 1; k < logm + 1; k++) {
-			int intervalLen = powers.get(k);
+		for (int k = 1; k < levels; k++) {
+			int intervalLen = powers[k];
+			sparseTable[k] = new int[m - intervalLen + 1];
 			for (int start = 0; start < m - intervalLen + 1; start++) {
 				int startNext = start + intervalLen/2;
-				sparseTable[start][k] = MinIndex(sparseTable[start][k-1], sparseTable[startNext][k-1]);
+				sparseTable[k][start] = MinIndex(sparseTable[k-1][start], sparseTable[k-1][startNext]);
 			}
-		} 
+		}
 	}
 
 	/**
@@ -236,14 +236,103 @@ public class FischerHeunRMQ implements RMQ {
 		if (b < 1) return;
 		blocks = (int) Math.ceil((double)(n)/b);
 		// initialize arrays and fill in bottom one
-		InitializeTopAndBottom();
+		InitializeBlocks();
+		InitializeBottom();
 		CalculateLogs();
 		CalculatePowers();
 		BuildSparseTable();
-		InitializeCartesians();
 	}
 
 
+	/**
+	 * Sets elements[indices[u]] to values[u] for every u, then repairs only
+	 * what those positions affect: the touched blocks' top minima and
+	 * Cartesian numbers (adding an in-block table for any new number), and
+	 * the sparse table cells whose result can have changed. A cell is only
+	 * recomputed when one of its two halves changed, so the cost is the
+	 * number of touched blocks times log(blocks) in the usual case, and at
+	 * most the size of the sparse table when an update moves a minimum that
+	 * many cells share.
+	 *
+	 * @param indices the positions to change
+	 * @param values the new values, one per position
+	 * @throws IllegalArgumentException if the arrays differ in length or an
+	 *         index is outside the array, in which case nothing is changed
+	 */
+	public void applyUpdates(int[] indices, float[] values) {
+		if (indices.length != values.length) {
+			throw new IllegalArgumentException("indices and values differ in length");
+		}
+		// Check everything first, so a bad index leaves the structure intact
+		for (int index : indices) {
+			if (index < 0 || index >= n) throw new IllegalArgumentException("Index " + index + " is outside the array");
+		}
+		for (int u = 0; u < indices.length; u++) {
+			elements[indices[u]] = values[u];
+		}
+		// Precomputed nearest smaller values are no longer valid
+		prevSmallers = null;
+		nextSmallers = null;
+		if (b < 1 || indices.length == 0) return;
+
+		// Sorted, distinct touched blocks
+		int[] touched = new int[indices.length];
+		for (int u = 0; u < indices.length; u++) {
+			touched[u] = indices[u]/b;
+		}
+		Arrays.sort(touched);
+		int count = 0;
+		for (int u = 0; u < touched.length; u++) {
+			if (count == 0 || touched[count-1] != touched[u]) touched[count++] = touched[u];
+		}
+		touched = Arrays.copyOf(touched, count);
+
+		for (int block : touched) {
+			InitializeBlock(block);
+			sparseTable[0][block] = top[block];
+		}
+		PatchSparseTable(touched);
+	}
+
+	/**
+	 * Recomputes the sparse table cells above changed ones, level by level.
+	 * A cell counts as changed if it now points somewhere else or points
+	 * into a touched block, whose values may have moved.
+	 * @param touched sorted, distinct touched blocks
+	 */
+	private void PatchSparseTable(int[] touched) {
+		int m = top.length;
+		int logm = levels - 1;
+		int[] dirty = touched;  // changed cells of the level below, sorted
+		for (int k = 1; k <= logm && dirty.length > 0; k++) {
+			int half = powers[k-1];
+			int intervalLen = powers[k];
+			int[] next = new int[2*dirty.length];
+			int count = 0;
+			// Cells at level k built from a dirty cell d are d - half and d;
+			// merge the two sorted streams of candidates
+			int a = 0;
+			int c = 0;
+			while (a < dirty.length || c < dirty.length) {
+				int start;
+				if (c >= dirty.length || (a < dirty.length && dirty[a] - half <= dirty[c])) {
+					start = dirty[a++] - half;
+				} else {
+					start = dirty[c++];
+				}
+				if (start < 0 || start + intervalLen > m) continue;
+				if (count > 0 && next[count-1] == start) continue;
+				int old = sparseTable[k][start];
+				int updated = MinIndex(sparseTable[k-1][start], sparseTable[k-1][start + half]);
+				sparseTable[k][start] = updated;
+				if (updated != old || Arrays.binarySearch(touched, updated/b) >= 0) {
+					next[count++] = start;
+				}
+			}
+			dirty = Arrays.copyOf(next, count);
+		}
+	}
+
 	/**
 	 * Finds min of within two blocks on bottom layer.
 	 * @param i the index of the first block
@@ -260,7 +349,7 @@ public class FischerHeunRMQ implements RMQ {
 		} else {
 			end = (iBlock + 1)*b - 1;
 		}
-		int firstMin = cartesianRMQs[cartesians[iBlock]].RMQ(i%b, end%b) + iBlock*b;
+		int firstMin = tableArena[blockTables[iBlock] + (i%b)*b + end%b] + iBlock*b;
 		// Second block (j)
 		int start;
 		if (iBlock == jBlock) {
@@ -268,7 +357,7 @@ public class FischerHeunRMQ implements RMQ {
 		} else {
 			start = jBlock*b;
 		}
-		int secondMin = cartesianRMQs[cartesians[jBlock]].RMQ(start%b, j%b) + jBlock*b;
+		int secondMin = tableArena[blockTables[jBlock] + (start%b)*b + j%b] + jBlock*b;
 		return MinIndex(firstMin, secondMin);
 	}
 
@@ -280,8 +369,8 @@ public class FischerHeunRMQ implements RMQ {
 	 */
 	private int TopMin(int topi, int topj) {
 		int k = logs[topj-topi];
-		int twotok = powers.get(k);
-		int topMin = MinIndex(sparseTable[topi][k], sparseTable[topj-twotok+1][k]);
+		int twotok = powers[k];
+		int topMin = MinIndex(sparseTable[k][topi], sparseTable[k][topj-twotok+1]);
 		return topMin;
 	}
 	
@@ -315,4 +404,149 @@ public class FischerHeunRMQ implements RMQ {
 		int topMin = TopMin(topi, topj);
 		return MinIndex(bottomMin, topMin);
 	}
+
+	/**
+	 * Returns the index of the nearest element to the left of i that is
+	 * strictly smaller than elements[i], or -1 if there is none. Unless
+	 * precomputeNearestSmaller has been called, this uses no extra memory:
+	 * it scans i's own block, skips whole blocks using the sparse table over
+	 * block minima, then scans the block it lands in, so it runs in O(log n).
+	 *
+	 * @param i the query index
+	 * @return the previous smaller index, or -1
+	 */
+	public int prevSmaller(int i) {
+		if (prevSmallers != null) return prevSmallers[i];
+		float value = elements[i];
+		if (b < 1) return ScanLeft(i - 1, 0, value);
+		int block = i/b;
+		int found = ScanLeft(i - 1, block*b, value);
+		if (found >= 0) return found;
+		// Skip the run of blocks to the left whose minimum is not smaller
+		int right = block - 1;
+		for (int k = levels - 1; k >= 0; k--) {
+			int start = right - powers[k] + 1;
+			if (start >= 0 && elements[sparseTable[k][start]] >= value) {
+				right = start - 1;
+			}
+		}
+		if (right < 0) return -1;
+		return ScanLeft((right + 1)*b - 1, right*b, value);
+	}
+
+	/**
+	 * Returns the index of the nearest element to the right of i that is
+	 * strictly smaller than elements[i], or -1 if there is none. Runs in
+	 * O(log n) without extra memory, like prevSmaller.
+	 *
+	 * @param i the query index
+	 * @return the next smaller index, or -1
+	 */
+	public int nextSmaller(int i) {
+		if (nextSmallers != null) return nextSmallers[i];
+		float value = elements[i];
+		if (b < 1) return ScanRight(i + 1, n - 1, value);
+		int block = i/b;
+		int found = ScanRight(i + 1, Math.min(n - 1, (block + 1)*b - 1), value);
+		if (found >= 0) return found;
+		// Skip the run of blocks to the right whose minimum is not smaller
+		int left = block + 1;
+		for (int k = levels - 1; k >= 0; k--) {
+			int end = left + powers[k] - 1;
+			if (end < blocks && elements[sparseTable[k][left]] >= value) {
+				left = end + 1;
+			}
+		}
+		if (left >= blocks) return -1;
+		return ScanRight(left*b, Math.min(n - 1, (left + 1)*b - 1), value);
+	}
+
+	/**
+	 * Finds the largest index in [low, high] holding a value below value.
+	 * @return the index, or -1
+	 */
+	private int ScanLeft(int high, int low, float value) {
+		for (int k = high; k >= low; k--) {
+			if (elements[k] < value) return k;
+		}
+		return -1;
+	}
+
+	/**
+	 * Finds the smallest index in [low, high] holding a value below value.
+	 * @return the index, or -1
+	 */
+	private int ScanRight(int low, int high, float value) {
+		for (int k = low; k <= high; k++) {
+			if (elements[k] < value) return k;
+		}
+		return -1;
+	}
+
+	/**
+	 * Precomputes the previous and next smaller element of every index, so
+	 * prevSmaller and nextSmaller become O(1) at the cost of two int[n]
+	 * arrays.
+	 */
+	public void precomputeNearestSmaller() {
+		prevSmallers = new int[n];
+		nextSmallers = new int[n];
+		ComputeNearestSmaller(prevSmallers, nextSmallers);
+	}
+
+	/**
+	 * Computes prevSmaller(i) for every index in one linear pass.
+	 * @return an array holding prevSmaller(i) at each index i
+	 */
+	public int[] allPrevSmaller() {
+		if (prevSmallers != null) return prevSmallers.clone();
+		int[] prev = new int[n];
+		ComputeNearestSmaller(prev, null);
+		return prev;
+	}
+
+	/**
+	 * Computes nextSmaller(i) for every index in one linear pass.
+	 * @return an array holding nextSmaller(i) at each index i
+	 */
+	public int[] allNextSmaller() {
+		if (nextSmallers != null) return nextSmallers.clone();
+		int[] next = new int[n];
+		ComputeNearestSmaller(null, next);
+		return next;
+	}
+
+	/**
+	 * Runs the same monotone stack as CartesianNumber over the whole array.
+	 * An index is popped by its next smaller element, and whatever is left
+	 * below it on the stack is its previous smaller (or equal, in which case
+	 * they share a previous smaller element).
+	 * @param prev receives previous smaller indices, if not null
+	 * @param next receives next smaller indices, if not null
+	 */
+	private void ComputeNearestSmaller(int[] prev, int[] next) {
+		int[] stack = new int[n];
+		int top = 0;
+		for (int k = 0; k < n; k++) {
+			while (top > 0 && elements[k] < elements[stack[top-1]]) {
+				top--;
+				if (next != null) next[stack[top]] = k;
+			}
+			if (prev != null) {
+				if (top == 0) {
+					prev[k] = -1;
+				} else if (elements[stack[top-1]] < elements[k]) {
+					prev[k] = stack[top-1];
+				} else {
+					prev[k] = prev[stack[top-1]];
+				}
+			}
+			stack[top++] = k;
+		}
+		if (next != null) {
+			while (top > 0) {
+				next[stack[--top]] = -1;
+			}
+		}
+	}
 }
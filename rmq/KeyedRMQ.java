@@ -0,0 +1,184 @@
+package rmq;
+
+/**
+ * Answers range minimum queries over key windows [from, to] instead of index
+ * ranges, for series with sorted but irregular keys such as timestamps. It
+ * pairs a sorted key column with any RMQ over the matching values.
+ * <p>
+ * Single lookups search an Eytzinger (breadth-first) copy of the keys, which
+ * keeps the top levels of the search in a few cache lines and lets the loop
+ * run without branches. The batch variant instead gallops forward from the
+ * previous window's bounds through the sorted keys, which is cheaper when
+ * windows arrive in order.
+ */
+public class KeyedRMQ {
+	private long[] keys;  // sorted
+	private long[] eytzinger;  // 1-based breadth-first layout of keys
+	private int[] ranks;  // index in keys of each Eytzinger slot
+	private RMQ rmq;
+	private int n;
+
+	/**
+	 * Creates a keyed structure over keys and values, using a FischerHeunRMQ
+	 * for the values.
+	 *
+	 * @param keys The keys, in non-decreasing order.
+	 * @param values The value at each key.
+	 */
+	public KeyedRMQ(long[] keys, float[] values) {
+		this(keys, BuildRMQ(keys, values));
+	}
+
+	/**
+	 * Checks that keys and values match before building the RMQ over the
+	 * values, so a mismatch costs nothing.
+	 */
+	private static RMQ BuildRMQ(long[] keys, float[] values) {
+		if (values.length != keys.length) throw new IllegalArgumentException("keys and values differ in length");
+		return new FischerHeunRMQ(values);
+	}
+
+	/**
+	 * Creates a keyed structure around an existing RMQ.
+	 *
+	 * @param keys The keys, in non-decreasing order, one per element of the
+	 *        array rmq was built over.
+	 * @param rmq The RMQ over the values.
+	 */
+	public KeyedRMQ(long[] keys, RMQ rmq) {
+		n = keys.length;
+		for (int i = 1; i < n; i++) {
+			if (keys[i] < keys[i-1]) throw new IllegalArgumentException("Keys are not sorted at index " + i);
+		}
+		this.keys = keys.clone();
+		this.rmq = rmq;
+		eytzinger = new long[n + 1];
+		ranks = new int[n + 1];
+		BuildEytzinger(0, 1);
+	}
+
+	/**
+	 * Fills the Eytzinger layout by an in-order walk of the implicit tree.
+	 * @param next the next sorted index to place
+	 * @param slot the current tree slot
+	 * @return the next sorted index after this subtree
+	 */
+	private int BuildEytzinger(int next, int slot) {
+		if (slot > n) return next;
+		next = BuildEytzinger(next, 2*slot);
+		eytzinger[slot] = keys[next];
+		ranks[slot] = next;
+		next++;
+		return BuildEytzinger(next, 2*slot + 1);
+	}
+
+	/**
+	 * Returns the number of keys.
+	 *
+	 * @return the length of the key column
+	 */
+	public int length() {
+		return n;
+	}
+
+	/**
+	 * Returns the key at an index.
+	 *
+	 * @param i the index
+	 * @return the key
+	 */
+	public long key(int i) {
+		return keys[i];
+	}
+
+	/**
+	 * Finds the first index whose key is at least key.
+	 *
+	 * @param key the key to search for
+	 * @return the index, or the number of keys if every key is smaller
+	 */
+	public int lowerBound(long key) {
+		int k = 1;
+		while (k <= n) {
+			k = 2*k + (eytzinger[k] < key ? 1 : 0);
+		}
+		// Undo the right turns taken after the last left turn
+		k >>>= Integer.numberOfTrailingZeros(~k) + 1;
+		return k == 0 ? n : ranks[k];
+	}
+
+	/**
+	 * Finds the first index whose key is greater than key.
+	 */
+	private int UpperBound(long key) {
+		return key == Long.MAX_VALUE ? n : lowerBound(key + 1);
+	}
+
+	/**
+	 * Returns the index of the smallest value whose key lies in [from, to].
+	 *
+	 * @param from The lowest key, inclusive.
+	 * @param to The highest key, inclusive.
+	 * @return The index of the minimum, or -1 if no key is in the window.
+	 */
+	public int rmqByKey(long from, long to) {
+		int i = lowerBound(from);
+		int j = UpperBound(to) - 1;
+		if (i > j) return -1;
+		return rmq.rmq(i, j);
+	}
+
+	/**
+	 * Answers a batch of key windows. It is fastest when froms and tos are
+	 * each non-decreasing, as with sliding or tumbling time windows; any
+	 * window that steps backwards falls back to a full search.
+	 *
+	 * @param froms The lowest key of each window, inclusive.
+	 * @param tos The highest key of each window, inclusive.
+	 * @param out Receives the answer to each window, or -1 if it is empty.
+	 */
+	public void rmqByKeys(long[] froms, long[] tos, int[] out) {
+		int i = 0;
+		int end = 0;  // one past the last index of the window
+		for (int q = 0; q < froms.length; q++) {
+			if (q > 0 && froms[q] >= froms[q-1]) {
+				i = Gallop(i, froms[q]);
+			} else {
+				i = lowerBound(froms[q]);
+			}
+			if (q > 0 && tos[q] >= tos[q-1] && tos[q] != Long.MAX_VALUE) {
+				end = Gallop(end, tos[q] + 1);
+			} else {
+				end = UpperBound(tos[q]);
+			}
+			out[q] = i < end ? rmq.rmq(i, end - 1) : -1;
+		}
+	}
+
+	/**
+	 * Finds the first index at or after start whose key is at least key, by
+	 * doubling steps and then binary searching the last step.
+	 * @param start an index known to have no larger key before it
+	 * @param key the key to search for
+	 * @return the index, or n
+	 */
+	private int Gallop(int start, long key) {
+		if (start >= n || keys[start] >= key) return start;
+		int lo = start;  // keys[lo] < key
+		int step = 1;
+		while (lo + step < n && keys[lo + step] < key) {
+			lo += step;
+			step *= 2;
+		}
+		int hi = Math.min(n, lo + step);  // keys[hi] >= key, or hi == n
+		while (hi - lo > 1) {
+			int mid = (lo + hi) >>> 1;
+			if (keys[mid] < key) {
+				lo = mid;
+			} else {
+				hi = mid;
+			}
+		}
+		return hi;
+	}
+}
@@ -0,0 +1,28 @@
+package rmq;
+/**
+ * An interface representing an object that can answer range minimum queries
+ * over arrays too large to be indexed by an int. It mirrors the RMQ
+ * interface, but both the query endpoints and the result are longs.
+ */
+public interface LongRMQ {
+    /**
+     * Returns the number of elements in the underlying array.
+     *
+     * @return The length of the array.
+     */
+    public long length();
+
+    /**
+     * Given the values of i and j, returns the index of the smallest element
+     * in the range A[i], A[i+1], ..., A[j]. If multiple elements in the range
+     * are tied for the smallest value, this method may return any of them.
+     * <p>
+     * The implementation can assume that i &le; j and does not need to handle
+     * the case where this isn't true.
+     *
+     * @param i The lower end of the range, inclusive.
+     * @param j The upper end of the range, inclusive.
+     * @return The value of RMQ_A(i, j).
+     */
+    public long rmq(long i, long j);
+}
@@ -0,0 +1,381 @@
+package rmq;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An &lt;O(n), O(1)&gt; long-indexed RMQ structure for arrays too large for a
+ * Java array. Both the elements and the index live off-heap in direct or
+ * memory-mapped buffers, split into 1 GiB segments.
+ * <p>
+ * The layout is a three-level version of the Fischer-Heun structure. The
+ * array is cut into blocks of 8 elements, each stored as its 16-bit
+ * Cartesian number, with one shared in-block table per distinct number.
+ * Blocks are grouped into superblocks of 256 blocks, each with a small sparse
+ * table of one-byte block offsets. A regular sparse table runs over the
+ * superblock minima. The off-heap index takes about 1.125 bytes per element.
+ * The on-heap top layer holds a long minimum and a log-sized column of int
+ * sparse table entries for each superblock of 2048 elements, about
+ * (4 log2(n / 2048) + 4) / 2048 bytes per element: n / 25 at n = 2^31 and
+ * n / 23 at 5 * 10^9.
+ * <p>
+ * Direct buffers count against -XX:MaxDirectMemorySize, so raise that to
+ * somewhat more than 1.125n bytes when building over very large arrays.
+ */
+public class OffHeapRMQ implements LongRMQ {
+	private static final int SEGMENT_BITS = 30;  // 1 GiB per buffer
+	private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+	private static final int FLOAT_SEGMENT_BITS = SEGMENT_BITS - 2;
+	private static final long FLOAT_SEGMENT_MASK = (1L << FLOAT_SEGMENT_BITS) - 1;
+	private static final int CHAR_SEGMENT_BITS = SEGMENT_BITS - 1;
+	private static final long CHAR_SEGMENT_MASK = (1L << CHAR_SEGMENT_BITS) - 1;
+
+	private static final int BLOCK_BITS = 3;
+	private static final int B = 1 << BLOCK_BITS;  // elements per block
+	private static final int SUPER_BITS = 8;
+	private static final int SUPER = 1 << SUPER_BITS;  // blocks per superblock
+	private static final int LEVELS = SUPER_BITS - 1;  // in-superblock levels 1..7
+	private static final int SUPER_TABLE_BYTES = LEVELS * SUPER;
+
+	private FloatBuffer[] elements;
+	private long n;  // size of array
+	private long blocks;
+	private long supers;
+	private CharBuffer[] cartesians;  // one Cartesian number per block
+	private ByteBuffer[] superTables;  // per-superblock sparse tables
+	private byte[][] cartesianRMQs = new byte[1 << (2*B)][];
+	private long[] superMins;
+	private int[][] sparseTable;  // [level][superblock]
+
+	/**
+	 * Creates a new OffHeapRMQ structure over a copy of elems, stored in
+	 * direct buffers.
+	 *
+	 * @elems The array over which RMQ should be computed.
+	 */
+	public OffHeapRMQ(float[] elems) {
+		this(CopyToDirect(elems), elems.length);
+	}
+
+	/**
+	 * Builds a structure over a file of raw 4-byte floats by mapping it into
+	 * memory. The file is mapped read-only and is never copied onto the heap.
+	 *
+	 * @param path the file holding the array
+	 * @param order the byte order the floats were written in
+	 * @return an RMQ structure over the file contents
+	 * @throws IOException if the file cannot be mapped
+	 */
+	public static OffHeapRMQ fromFloatFile(Path path, ByteOrder order) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long n = channel.size() / Float.BYTES;
+			long bytes = n * Float.BYTES;
+			FloatBuffer[] segments = new FloatBuffer[(int)((bytes + SEGMENT_MASK) >>> SEGMENT_BITS)];
+			for (int s = 0; s < segments.length; s++) {
+				long start = (long)s << SEGMENT_BITS;
+				long size = Math.min(1L << SEGMENT_BITS, bytes - start);
+				segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, start, size)
+						.order(order).asFloatBuffer();
+			}
+			return new OffHeapRMQ(segments, n);
+		}
+	}
+
+	/**
+	 * Builds the index over already segmented elements.
+	 * @param segments the elements, 2^28 floats per segment
+	 * @param n the number of elements
+	 */
+	private OffHeapRMQ(FloatBuffer[] segments, long n) {
+		this.elements = segments;
+		this.n = n;
+		if (n == 0) return;
+		blocks = (n + B - 1) >>> BLOCK_BITS;
+		supers = (blocks + SUPER - 1) >>> SUPER_BITS;
+		cartesians = AsCharBuffers(AllocateDirect(blocks * Character.BYTES, SEGMENT_BITS));
+		superTables = AllocateDirect(supers * SUPER_TABLE_BYTES, SEGMENT_BITS);
+		superMins = new long[(int)supers];
+		BuildBlocks();
+		BuildSuperTables();
+		BuildSparseTable();
+	}
+
+	/**
+	 * Copies an on-heap array into segmented direct buffers.
+	 * @param elems the array to copy
+	 * @return the float segments
+	 */
+	private static FloatBuffer[] CopyToDirect(float[] elems) {
+		ByteBuffer[] bytes = AllocateDirect((long)elems.length * Float.BYTES, SEGMENT_BITS);
+		FloatBuffer[] segments = new FloatBuffer[bytes.length];
+		for (int s = 0; s < bytes.length; s++) {
+			segments[s] = bytes[s].asFloatBuffer();
+			int start = s << FLOAT_SEGMENT_BITS;
+			segments[s].put(elems, start, segments[s].capacity());
+		}
+		return segments;
+	}
+
+	/**
+	 * Allocates the given number of bytes as a run of direct buffers.
+	 * @param bytes total size
+	 * @param segmentBits log2 of the largest buffer size
+	 * @return the buffers, in native byte order
+	 */
+	private static ByteBuffer[] AllocateDirect(long bytes, int segmentBits) {
+		long segmentSize = 1L << segmentBits;
+		ByteBuffer[] segments = new ByteBuffer[(int)((bytes + segmentSize - 1) >>> segmentBits)];
+		for (int s = 0; s < segments.length; s++) {
+			long size = Math.min(segmentSize, bytes - ((long)s << segmentBits));
+			segments[s] = ByteBuffer.allocateDirect((int)size).order(ByteOrder.nativeOrder());
+		}
+		return segments;
+	}
+
+	private static CharBuffer[] AsCharBuffers(ByteBuffer[] bytes) {
+		CharBuffer[] chars = new CharBuffer[bytes.length];
+		for (int s = 0; s < bytes.length; s++) {
+			chars[s] = bytes[s].asCharBuffer();
+		}
+		return chars;
+	}
+
+	/**
+	 * Reads the element at a long index.
+	 * @param i the index
+	 * @return the element
+	 */
+	private float Get(long i) {
+		return elements[(int)(i >>> FLOAT_SEGMENT_BITS)].get((int)(i & FLOAT_SEGMENT_MASK));
+	}
+
+	private int Cartesian(long block) {
+		return cartesians[(int)(block >>> CHAR_SEGMENT_BITS)].get((int)(block & CHAR_SEGMENT_MASK));
+	}
+
+	private int SuperTable(long sb, int level, int start) {
+		long offset = sb * SUPER_TABLE_BYTES + (level - 1) * SUPER + start;
+		return superTables[(int)(offset >>> SEGMENT_BITS)].get((int)(offset & SEGMENT_MASK)) & 0xff;
+	}
+
+	private void SetSuperTable(long sb, int level, int start, int block) {
+		long offset = sb * SUPER_TABLE_BYTES + (level - 1) * SUPER + start;
+		superTables[(int)(offset >>> SEGMENT_BITS)].put((int)(offset & SEGMENT_MASK), (byte)block);
+	}
+
+	/**
+	 * Helper function for getting which index has the minimum value in
+	 * the array.
+	 * @param index1 the first index in question
+	 * @param index2 the second
+	 * @return the index that represents the min
+	 */
+	private long MinIndex(long index1, long index2) {
+		return Get(index1) <= Get(index2) ? index1 : index2;
+	}
+
+	/**
+	 * Computes the Cartesian number of every block in one pass, building an
+	 * in-block table the first time each number is seen. A short final block
+	 * is padded with values larger than anything in the array, which never
+	 * pop the stack and never win a tie.
+	 */
+	private void BuildBlocks() {
+		float[] block = new float[B];
+		int[] stack = new int[B];
+		for (long blk = 0; blk < blocks; blk++) {
+			long start = blk << BLOCK_BITS;
+			int len = (int)Math.min(B, n - start);
+			int cartesian = 0;
+			int top = 0;
+			for (int k = 0; k < B; k++) {
+				block[k] = k < len ? Get(start + k) : Float.POSITIVE_INFINITY;
+				while (top > 0 && k < len && block[k] < block[stack[top-1]]) {
+					top--;
+					cartesian = 2*cartesian;
+				}
+				stack[top++] = k;
+				cartesian = 2*cartesian + 1;
+			}
+			cartesian <<= top;
+			cartesians[(int)(blk >>> CHAR_SEGMENT_BITS)].put((int)(blk & CHAR_SEGMENT_MASK), (char)cartesian);
+			if (cartesianRMQs[cartesian] == null) {
+				cartesianRMQs[cartesian] = BuildBlockTable(block, len);
+			}
+		}
+	}
+
+	/**
+	 * Precomputes all in-block answers for one block, keeping the leftmost
+	 * minimum so padding slots are never returned.
+	 * @param block the block's values
+	 * @param len number of real values in the block
+	 * @return table of offsets indexed by k*B + l
+	 */
+	private static byte[] BuildBlockTable(float[] block, int len) {
+		byte[] table = new byte[B*B];
+		for (int k = 0; k < B; k++) {
+			int min = k;
+			for (int l = k; l < B; l++) {
+				if (l < len && block[l] < block[min]) min = l;
+				table[k*B + l] = (byte)min;
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * Answers a query inside a single block.
+	 * @param block the block index
+	 * @param k start offset within the block
+	 * @param l end offset within the block
+	 * @return the minimum index
+	 */
+	private long InBlock(long block, int k, int l) {
+		return (block << BLOCK_BITS) + cartesianRMQs[Cartesian(block)][k*B + l];
+	}
+
+	private long BlockMin(long block) {
+		return InBlock(block, 0, B - 1);
+	}
+
+	/**
+	 * Builds the sparse table inside each superblock, over block minima,
+	 * along with the minimum of each superblock.
+	 */
+	private void BuildSuperTables() {
+		for (long sb = 0; sb < supers; sb++) {
+			long first = sb << SUPER_BITS;
+			int count = (int)Math.min(SUPER, blocks - first);
+			long min = BlockMin(first);
+			for (int s = 1; s < count; s++) {
+				min = MinIndex(min, BlockMin(first + s));
+			}
+			superMins[(int)sb] = min;
+			for (int level = 1; level <= LEVELS; level++) {
+				int half = 1 << (level - 1);
+				for (int s = 0; s + 2*half <= count; s++) {
+					int left = level == 1 ? s : SuperTable(sb, level - 1, s);
+					int right = level == 1 ? s + 1 : SuperTable(sb, level - 1, s + half);
+					long best = MinIndex(BlockMin(first + left), BlockMin(first + right));
+					SetSuperTable(sb, level, s, best == BlockMin(first + left) ? left : right);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Builds the sparse table over superblock minima, one flat array per
+	 * level.
+	 */
+	private void BuildSparseTable() {
+		int m = (int)supers;
+		int logm = 31 - Integer.numberOfLeadingZeros(m);
+		sparseTable = new int[logm+1][];
+		sparseTable[0] = new int[m];
+		for (int start = 0; start < m; start++) {
+			sparseTable[0][start] = start;
+		}
+		for (int k = 1; k < logm + 1; k++) {
+			int half = 1 << (k - 1);
+			int[] prev = sparseTable[k-1];
+			int[] level = new int[m - 2*half + 1];
+			for (int start = 0; start < level.length; start++) {
+				int a = prev[start];
+				int b = prev[start + half];
+				level[start] = Get(superMins[a]) <= Get(superMins[b]) ? a : b;
+			}
+			sparseTable[k] = level;
+		}
+	}
+
+	/**
+	 * Finds the minimum over a run of blocks inside one superblock.
+	 * @param sb the superblock
+	 * @param s first block, relative to the superblock
+	 * @param e last block, relative to the superblock
+	 * @return the minimum index
+	 */
+	private long InSuper(long sb, int s, int e) {
+		long first = sb << SUPER_BITS;
+		int len = e - s + 1;
+		if (len == 1) return BlockMin(first + s);
+		if (len == SUPER) return superMins[(int)sb];
+		int k = 31 - Integer.numberOfLeadingZeros(len);
+		return MinIndex(BlockMin(first + SuperTable(sb, k, s)),
+				BlockMin(first + SuperTable(sb, k, e - (1 << k) + 1)));
+	}
+
+	/**
+	 * Finds the minimum of a run of whole superblocks.
+	 * @param topi index of start superblock
+	 * @param topj index of end superblock
+	 * @return the minimum index
+	 */
+	private long TopMin(int topi, int topj) {
+		int k = 31 - Integer.numberOfLeadingZeros(topj - topi + 1);
+		int[] level = sparseTable[k];
+		return MinIndex(superMins[level[topi]], superMins[level[topj - (1 << k) + 1]]);
+	}
+
+	/**
+	 * Finds the minimum of a run of whole blocks.
+	 * @param lo first block
+	 * @param hi last block
+	 * @return the minimum index
+	 */
+	private long BlockRangeMin(long lo, long hi) {
+		long slo = lo >>> SUPER_BITS;
+		long shi = hi >>> SUPER_BITS;
+		int s = (int)(lo & (SUPER - 1));
+		int e = (int)(hi & (SUPER - 1));
+		if (slo == shi) return InSuper(slo, s, e);
+		long best = MinIndex(InSuper(slo, s, SUPER - 1), InSuper(shi, 0, e));
+		if (slo + 1 <= shi - 1) best = MinIndex(best, TopMin((int)slo + 1, (int)shi - 1));
+		return best;
+	}
+
+	/**
+	 * Returns the number of bytes used by the index, not counting the
+	 * elements themselves.
+	 *
+	 * @return index size in bytes
+	 */
+	public long indexBytes() {
+		long bytes = blocks * Character.BYTES + supers * SUPER_TABLE_BYTES + supers * Long.BYTES;
+		if (sparseTable != null) {
+			for (int[] level : sparseTable) bytes += (long)level.length * Integer.BYTES;
+		}
+		for (byte[] table : cartesianRMQs) {
+			if (table != null) bytes += table.length;
+		}
+		return bytes;
+	}
+
+	@Override
+	public long length() {
+		return n;
+	}
+
+	/**
+	 * Evaluates RMQ(i, j) over the stored array, returning the index of the
+	 * minimum value in that range.
+	 */
+	@Override
+	public long rmq(long i, long j) {
+		long bi = i >>> BLOCK_BITS;
+		long bj = j >>> BLOCK_BITS;
+		int k = (int)(i & (B - 1));
+		int l = (int)(j & (B - 1));
+		if (bi == bj) return InBlock(bi, k, l);
+		long best = MinIndex(InBlock(bi, k, B - 1), InBlock(bj, 0, l));
+		if (bi + 1 <= bj - 1) best = MinIndex(best, BlockRangeMin(bi + 1, bj - 1));
+		return best;
+	}
+}
@@ -0,0 +1,107 @@
+package rmq;
+
+/**
+ * An offline &lt;O(n + q &alpha;(n))&gt; RMQ engine for when every query is
+ * known up front. Rather than building an index, it sweeps the array once
+ * from left to right with a monotone stack, merging each popped index into
+ * the element that popped it using union-find (Tarjan's offline method).
+ * A query (i, j) is answered at the moment j is reached, as the stack
+ * element that i's set currently belongs to. Nothing is kept afterwards.
+ * <p>
+ * Ties resolve to the leftmost minimum. Memory use is a handful of int
+ * arrays of length n and q.
+ */
+public class OfflineRMQ {
+	private OfflineRMQ() {}
+
+	/**
+	 * Answers every query (is[q], js[q]) over elems.
+	 *
+	 * @param elems The array over which RMQ should be computed.
+	 * @param is The lower ends of the queries, inclusive.
+	 * @param js The upper ends of the queries, inclusive.
+	 * @return An array holding RMQ(is[q], js[q]) at each index q.
+	 */
+	public static int[] solve(float[] elems, int[] is, int[] js) {
+		int[] result = new int[is.length];
+		solve(elems, is, js, result);
+		return result;
+	}
+
+	/**
+	 * Answers every query (is[q], js[q]) over elems, writing the answers into
+	 * result.
+	 *
+	 * @param elems The array over which RMQ should be computed.
+	 * @param is The lower ends of the queries, inclusive.
+	 * @param js The upper ends of the queries, inclusive.
+	 * @param result Receives RMQ(is[q], js[q]) at each index q.
+	 */
+	public static void solve(float[] elems, int[] is, int[] js, int[] result) {
+		int n = elems.length;
+		int q = is.length;
+		if (n == 0 || q == 0) return;
+
+		// Bucket the queries by their right end, as linked lists through next
+		int[] head = new int[n];
+		int[] next = new int[q];
+		for (int k = 0; k < n; k++) {
+			head[k] = -1;
+		}
+		for (int query = 0; query < q; query++) {
+			next[query] = head[js[query]];
+			head[js[query]] = query;
+		}
+
+		int[] parent = new int[n];
+		byte[] rank = new byte[n];
+		int[] rep = new int[n];  // the stack element each set root stands for
+		int[] stack = new int[n];
+		int top = 0;
+		for (int k = 0; k < n; k++) {
+			parent[k] = k;
+			rep[k] = k;
+			// Everything popped has k as its minimum from now on
+			while (top > 0 && elems[k] < elems[stack[top-1]]) {
+				int root = Union(parent, rank, Find(parent, stack[--top]), Find(parent, k));
+				rep[root] = k;
+			}
+			stack[top++] = k;
+			for (int query = head[k]; query != -1; query = next[query]) {
+				result[query] = rep[Find(parent, is[query])];
+			}
+		}
+	}
+
+	/**
+	 * Finds the root of x's set, halving the path as it goes.
+	 * @param parent the union-find forest
+	 * @param x the element
+	 * @return the root of x's set
+	 */
+	private static int Find(int[] parent, int x) {
+		while (parent[x] != x) {
+			parent[x] = parent[parent[x]];
+			x = parent[x];
+		}
+		return x;
+	}
+
+	/**
+	 * Links two distinct roots by rank.
+	 * @param parent the union-find forest
+	 * @param rank the rank of each root
+	 * @param a the first root
+	 * @param b the second root
+	 * @return the root of the merged set
+	 */
+	private static int Union(int[] parent, byte[] rank, int a, int b) {
+		if (rank[a] < rank[b]) {
+			parent[a] = b;
+			return b;
+		}
+		if (rank[a] == rank[b]) rank[a]++;
+		parent[b] = a;
+		return a;
+	}
+}
@@ -0,0 +1,265 @@
+package rmq;
+
+import java.util.Arrays;
+
+/**
+ * An &lt;O(n), O(log n)&gt; persistent RMQ structure. Each update creates a new
+ * version in O(log n) time and space, and every retained version can still
+ * be queried. It is a segment tree with path copying: an update copies only
+ * the nodes on the path to the changed leaf and shares the rest with the
+ * previous version.
+ * <p>
+ * Nodes live in a pool of parallel primitive arrays rather than as objects.
+ * Old versions can be released, after which collectGarbage compacts the
+ * pool down to the nodes reachable from the versions still retained.
+ */
+public class PersistentRMQ implements RMQ {
+	private int[] left = new int[16];
+	private int[] right = new int[16];
+	private int[] minIndex = new int[16];
+	private float[] minValue = new float[16];
+	private int nodes;  // nodes in use
+	private int[] roots = new int[16];  // root of each version, -1 once released
+	private int versions;
+	private int n;  // size of array
+
+	/**
+	 * Creates a new PersistentRMQ whose version 0 holds the array given by
+	 * elems.
+	 *
+	 * @elems The array over which RMQ should be computed.
+	 */
+	public PersistentRMQ(float[] elems) {
+		n = elems.length;
+		roots[versions++] = n == 0 ? -1 : Build(elems, 0, n - 1);
+	}
+
+	/**
+	 * Allocates a node from the pool, growing it if needed.
+	 * @return the new node
+	 */
+	private int NewNode(int l, int r, int index, float value) {
+		if (nodes == left.length) {
+			int capacity = 2*nodes;
+			left = Arrays.copyOf(left, capacity);
+			right = Arrays.copyOf(right, capacity);
+			minIndex = Arrays.copyOf(minIndex, capacity);
+			minValue = Arrays.copyOf(minValue, capacity);
+		}
+		left[nodes] = l;
+		right[nodes] = r;
+		minIndex[nodes] = index;
+		minValue[nodes] = value;
+		return nodes++;
+	}
+
+	/**
+	 * Creates an internal node over two children, keeping the leftmost
+	 * minimum.
+	 */
+	private int Join(int l, int r) {
+		int min = minValue[l] <= minValue[r] ? l : r;
+		return NewNode(l, r, minIndex[min], minValue[min]);
+	}
+
+	/**
+	 * Builds the tree over elems[lo..hi].
+	 * @return the root node
+	 */
+	private int Build(float[] elems, int lo, int hi) {
+		if (lo == hi) return NewNode(-1, -1, lo, elems[lo]);
+		int mid = (lo + hi) >>> 1;
+		int l = Build(elems, lo, mid);
+		int r = Build(elems, mid + 1, hi);
+		return Join(l, r);
+	}
+
+	/**
+	 * Copies the path to index, setting the leaf to value.
+	 * @return the new root of this subtree
+	 */
+	private int Update(int node, int lo, int hi, int index, float value) {
+		if (lo == hi) return NewNode(-1, -1, index, value);
+		int mid = (lo + hi) >>> 1;
+		if (index <= mid) {
+			return Join(Update(left[node], lo, mid, index, value), right[node]);
+		}
+		return Join(left[node], Update(right[node], mid + 1, hi, index, value));
+	}
+
+	/**
+	 * Finds the node holding the minimum over [i, j] within the subtree.
+	 * @return the node, or -1 if the subtree does not meet [i, j]
+	 */
+	private int Query(int node, int lo, int hi, int i, int j) {
+		if (j < lo || hi < i) return -1;
+		if (i <= lo && hi <= j) return node;
+		int mid = (lo + hi) >>> 1;
+		int l = Query(left[node], lo, mid, i, j);
+		int r = Query(right[node], mid + 1, hi, i, j);
+		if (l < 0) return r;
+		if (r < 0) return l;
+		return minValue[l] <= minValue[r] ? l : r;
+	}
+
+	private int Root(int version) {
+		if (version < 0 || version >= versions || roots[version] < 0 && n > 0) {
+			throw new IllegalArgumentException("Version " + version + " is not retained");
+		}
+		return roots[version];
+	}
+
+	/**
+	 * Sets elems[index] to value in a new version derived from the latest
+	 * one.
+	 *
+	 * @param index the index to change
+	 * @param value the new value
+	 * @return the number of the new version
+	 * @throws IllegalArgumentException if index is outside the array
+	 */
+	public int update(int index, float value) {
+		if (index < 0 || index >= n) throw new IllegalArgumentException("Index " + index + " is outside the array");
+		int root = Update(roots[versions - 1], 0, n - 1, index, value);
+		if (versions == roots.length) roots = Arrays.copyOf(roots, 2*versions);
+		roots[versions] = root;
+		return versions++;
+	}
+
+	/**
+	 * Returns the most recent version number.
+	 *
+	 * @return the latest version
+	 */
+	public int latestVersion() {
+		return versions - 1;
+	}
+
+	/**
+	 * Evaluates RMQ(i, j) as of the given version.
+	 *
+	 * @param version a retained version
+	 * @param i The lower end of the range, inclusive.
+	 * @param j The upper end of the range, inclusive.
+	 * @return The value of RMQ_A(i, j) in that version.
+	 */
+	public int rmq(int version, int i, int j) {
+		return minIndex[Query(Root(version), 0, n - 1, i, j)];
+	}
+
+	/**
+	 * Evaluates RMQ(i, j) over the latest version.
+	 */
+	@Override
+	public int rmq(int i, int j) {
+		return rmq(versions - 1, i, j);
+	}
+
+	/**
+	 * Returns elems[index] as of the given version.
+	 *
+	 * @param version a retained version
+	 * @param index the index to read
+	 * @return the value in that version
+	 */
+	public float value(int version, int index) {
+		return minValue[Query(Root(version), 0, n - 1, index, index)];
+	}
+
+	/**
+	 * Drops a version so its nodes can be reclaimed by collectGarbage. The
+	 * latest version is always kept.
+	 *
+	 * @param version the version to drop
+	 */
+	public void release(int version) {
+		if (version == versions - 1) throw new IllegalArgumentException("Cannot release the latest version");
+		Root(version);
+		roots[version] = -1;
+	}
+
+	/**
+	 * Drops every version except the most recent count.
+	 *
+	 * @param count the number of recent versions to keep, at least 1
+	 */
+	public void retainLatest(int count) {
+		for (int v = 0; v < versions - Math.max(1, count); v++) {
+			roots[v] = -1;
+		}
+	}
+
+	/**
+	 * Compacts the node pool to the nodes reachable from retained versions.
+	 * Runs in time linear in the current pool size.
+	 */
+	public void collectGarbage() {
+		if (n == 0) return;
+		int[] forward = new int[nodes];
+		Arrays.fill(forward, -1);
+		int[] newLeft = new int[nodes];
+		int[] newRight = new int[nodes];
+		int[] newIndex = new int[nodes];
+		float[] newValue = new float[nodes];
+		int[] stack = new int[nodes];
+		int live = 0;
+		// Children are always created before their parents, so copying in
+		// increasing node order keeps that order and lets a single pass remap
+		// the child links. Mark first, then copy the marked nodes in order.
+		for (int v = 0; v < versions; v++) {
+			if (roots[v] < 0 || forward[roots[v]] != -1) continue;
+			int top = 0;
+			stack[top++] = roots[v];
+			forward[roots[v]] = 0;
+			while (top > 0) {
+				int node = stack[--top];
+				if (left[node] < 0) continue;
+				if (forward[left[node]] == -1) {
+					forward[left[node]] = 0;
+					stack[top++] = left[node];
+				}
+				if (forward[right[node]] == -1) {
+					forward[right[node]] = 0;
+					stack[top++] = right[node];
+				}
+			}
+		}
+		for (int node = 0; node < nodes; node++) {
+			if (forward[node] == -1) continue;
+			forward[node] = live;
+			newLeft[live] = left[node] < 0 ? -1 : forward[left[node]];
+			newRight[live] = right[node] < 0 ? -1 : forward[right[node]];
+			newIndex[live] = minIndex[node];
+			newValue[live] = minValue[node];
+			live++;
+		}
+		for (int v = 0; v < versions; v++) {
+			if (roots[v] >= 0) roots[v] = forward[roots[v]];
+		}
+		int capacity = Math.max(16, live + live/2);
+		left = Arrays.copyOf(newLeft, capacity);
+		right = Arrays.copyOf(newRight, capacity);
+		minIndex = Arrays.copyOf(newIndex, capacity);
+		minValue = Arrays.copyOf(newValue, capacity);
+		nodes = live;
+	}
+
+	/**
+	 * Returns the number of tree nodes currently in the pool.
+	 *
+	 * @return the node count
+	 */
+	public int nodeCount() {
+		return nodes;
+	}
+
+	/**
+	 * Returns the bytes held by the node pool and version table, including
+	 * unused capacity.
+	 *
+	 * @return memory use in bytes
+	 */
+	public long memoryBytes() {
+		return (long)left.length * (3*Integer.BYTES + Float.BYTES) + (long)roots.length * Integer.BYTES;
+	}
+}
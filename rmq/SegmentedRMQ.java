@@ -0,0 +1,345 @@
+package rmq;
+
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+/**
+ * An RMQ structure over a sequence of immutable, appendable segments, for
+ * data that arrives in chunks. Each sealed segment keeps its own RMQ, and a
+ * sparse table over segment minima plays the part of the top layer in
+ * HybridRMQ. Appending a segment costs O(segment + log segments), and a
+ * query is O(log segments) to locate its ends plus O(1) per part.
+ * <p>
+ * Runs of adjacent small segments are merged on a background thread, shared
+ * by every instance, so the segment count stays low. Queries may run
+ * concurrently with appends and compaction.
+ */
+public class SegmentedRMQ implements RMQ, AutoCloseable {
+	/** Segments smaller than this are merged with their neighbours. */
+	public static final int DEFAULT_COMPACTION_THRESHOLD = 1 << 16;
+
+	/** One daemon thread compacts for every instance, started on first use. */
+	private static final ExecutorService COMPACTOR = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "segmented-rmq-compactor");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final Function<float[], RMQ> factory;
+	private final int compactionThreshold;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private float[][] data = new float[8][];
+	private RMQ[] rmqs = new RMQ[8];
+	private int[] offsets = new int[9];  // offsets[s] is the first index of segment s
+	private int[] segmentMins = new int[8];  // min index within each segment
+	private float[] segmentMinValues = new float[8];
+	private int[][] sparseTable = new int[1][8];  // [level][last segment]
+	private int segments;
+	private Future<?> pendingCompaction;
+	private boolean compactionQueued;
+	private boolean closed;
+	private final Object compactionLock = new Object();
+
+	/**
+	 * Creates a new SegmentedRMQ holding elems as its first segment, with
+	 * FischerHeunRMQ for each segment.
+	 *
+	 * @elems The array over which RMQ should be computed.
+	 */
+	public SegmentedRMQ(float[] elems) {
+		this(FischerHeunRMQ::new, DEFAULT_COMPACTION_THRESHOLD);
+		append(elems);
+	}
+
+	/**
+	 * Creates an empty SegmentedRMQ.
+	 *
+	 * @param factory Builds the RMQ for each segment.
+	 * @param compactionThreshold Segments smaller than this are merged in the
+	 *        background; 0 disables compaction.
+	 */
+	public SegmentedRMQ(Function<float[], RMQ> factory, int compactionThreshold) {
+		this.factory = factory;
+		this.compactionThreshold = compactionThreshold;
+	}
+
+	/**
+	 * Seals a copy of elems as a new segment at the end of the array.
+	 *
+	 * @param elems The elements to append.
+	 */
+	public void append(float[] elems) {
+		if (elems.length == 0) return;
+		float[] copy = Arrays.copyOf(elems, elems.length);
+		RMQ rmq = factory.apply(copy);
+		boolean mergeable;
+		lock.writeLock().lock();
+		try {
+			if ((long)offsets[segments] + copy.length > Integer.MAX_VALUE) {
+				throw new IllegalStateException("Total size exceeds " + Integer.MAX_VALUE);
+			}
+			if (segments == data.length) Grow();
+			data[segments] = copy;
+			rmqs[segments] = rmq;
+			segmentMins[segments] = rmq.rmq(0, copy.length - 1);
+			segmentMinValues[segments] = copy[segmentMins[segments]];
+			offsets[segments + 1] = offsets[segments] + copy.length;
+			segments++;
+			AddToSparseTable(segments - 1);
+			// Only a small segment next to another small one can be merged
+			mergeable = segments >= 2 && copy.length < compactionThreshold &&
+						data[segments - 2].length < compactionThreshold;
+		} finally {
+			lock.writeLock().unlock();
+		}
+		if (mergeable) ScheduleCompaction();
+	}
+
+	private void Grow() {
+		int capacity = 2*data.length;
+		data = Arrays.copyOf(data, capacity);
+		rmqs = Arrays.copyOf(rmqs, capacity);
+		offsets = Arrays.copyOf(offsets, capacity + 1);
+		segmentMins = Arrays.copyOf(segmentMins, capacity);
+		segmentMinValues = Arrays.copyOf(segmentMinValues, capacity);
+		for (int k = 0; k < sparseTable.length; k++) {
+			sparseTable[k] = Arrays.copyOf(sparseTable[k], capacity);
+		}
+	}
+
+	private int BetterSegment(int s1, int s2) {
+		return segmentMinValues[s1] <= segmentMinValues[s2] ? s1 : s2;
+	}
+
+	/**
+	 * Fills in the sparse table entries that end at the given segment. The
+	 * table is indexed by the last segment of each interval, so appending
+	 * only ever adds entries.
+	 * @param end the new segment
+	 */
+	private void AddToSparseTable(int end) {
+		int levels = 32 - Integer.numberOfLeadingZeros(end + 1);
+		if (levels > sparseTable.length) {
+			sparseTable = Arrays.copyOf(sparseTable, levels);
+			sparseTable[levels - 1] = new int[data.length];
+		}
+		sparseTable[0][end] = end;
+		for (int k = 1; k < levels; k++) {
+			int half = 1 << (k - 1);
+			sparseTable[k][end] = BetterSegment(sparseTable[k-1][end - half], sparseTable[k-1][end]);
+		}
+	}
+
+	/**
+	 * Finds the segment holding a global index.
+	 * @param i the index
+	 * @return the segment
+	 */
+	private int SegmentOf(int i) {
+		int lo = 0;
+		int hi = segments - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (offsets[mid] <= i) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Returns the total number of elements across all segments.
+	 *
+	 * @return the array size
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return offsets[segments];
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the current number of segments.
+	 *
+	 * @return the segment count
+	 */
+	public int segmentCount() {
+		lock.readLock().lock();
+		try {
+			return segments;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Evaluates RMQ(i, j) over the concatenation of all segments, returning
+	 * the index of the minimum value in that range.
+	 */
+	@Override
+	public int rmq(int i, int j) {
+		lock.readLock().lock();
+		try {
+			int si = SegmentOf(i);
+			int sj = SegmentOf(j);
+			int offi = offsets[si];
+			if (si == sj) return offi + rmqs[si].rmq(i - offi, j - offi);
+			int offj = offsets[sj];
+			int left = rmqs[si].rmq(i - offi, data[si].length - 1);
+			int right = rmqs[sj].rmq(0, j - offj);
+			int best = data[si][left] <= data[sj][right] ? offi + left : offj + right;
+			float bestValue = Math.min(data[si][left], data[sj][right]);
+			if (si + 1 <= sj - 1) {
+				// Whole segments in between, from the top-level sparse table
+				int k = 31 - Integer.numberOfLeadingZeros(sj - si - 1);
+				int middle = BetterSegment(sparseTable[k][si + (1 << k)], sparseTable[k][sj - 1]);
+				if (segmentMinValues[middle] < bestValue) best = offsets[middle] + segmentMins[middle];
+			}
+			return best;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Submits a compaction pass unless one is already waiting to run.
+	 */
+	private synchronized void ScheduleCompaction() {
+		if (closed || compactionQueued) return;
+		compactionQueued = true;
+		pendingCompaction = COMPACTOR.submit(() -> {
+			synchronized (this) {
+				compactionQueued = false;
+			}
+			compact();
+		});
+	}
+
+	/**
+	 * Merges runs of adjacent small segments until none are left. The merged
+	 * RMQ is built without holding the lock; only the swap blocks queries.
+	 * This is normally run in the background but may be called directly.
+	 */
+	public void compact() {
+		synchronized (compactionLock) {
+			while (CompactOneRun()) {}
+		}
+	}
+
+	/**
+	 * Merges the first run of small segments, if there is one.
+	 * @return whether a run was merged
+	 */
+	private boolean CompactOneRun() {
+		int first;
+		int last;
+		float[][] run;
+		lock.readLock().lock();
+		try {
+			first = -1;
+			last = -1;
+			for (int s = 0; s + 1 < segments; s++) {
+				if (data[s].length < compactionThreshold && data[s + 1].length < compactionThreshold) {
+					first = s;
+					break;
+				}
+			}
+			if (first < 0) return false;
+			// Extend the run until it is big enough or stops being small
+			long total = data[first].length;
+			last = first;
+			while (last + 1 < segments && data[last + 1].length < compactionThreshold && total < compactionThreshold) {
+				last++;
+				total += data[last].length;
+			}
+			run = Arrays.copyOfRange(data, first, last + 1);
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		float[] merged = new float[TotalLength(run)];
+		int pos = 0;
+		for (float[] segment : run) {
+			System.arraycopy(segment, 0, merged, pos, segment.length);
+			pos += segment.length;
+		}
+		RMQ rmq = factory.apply(merged);
+
+		lock.writeLock().lock();
+		try {
+			// Appends only add at the end, so first..last are unchanged
+			int removed = last - first;
+			data[first] = merged;
+			rmqs[first] = rmq;
+			segmentMins[first] = rmq.rmq(0, merged.length - 1);
+			segmentMinValues[first] = merged[segmentMins[first]];
+			for (int s = last + 1; s < segments; s++) {
+				data[s - removed] = data[s];
+				rmqs[s - removed] = rmqs[s];
+				segmentMins[s - removed] = segmentMins[s];
+				segmentMinValues[s - removed] = segmentMinValues[s];
+				offsets[s - removed] = offsets[s];
+			}
+			segments -= removed;
+			offsets[segments] = offsets[segments + removed];
+			for (int s = segments; s < segments + removed; s++) {
+				data[s] = null;
+				rmqs[s] = null;
+			}
+			for (int s = first; s < segments; s++) {
+				AddToSparseTable(s);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+		return true;
+	}
+
+	private static int TotalLength(float[][] run) {
+		int total = 0;
+		for (float[] segment : run) total += segment.length;
+		return total;
+	}
+
+	/**
+	 * Waits for any scheduled compaction to finish.
+	 *
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public void awaitCompaction() throws InterruptedException {
+		Future<?> pending;
+		synchronized (this) {
+			pending = pendingCompaction;
+		}
+		if (pending == null) return;
+		try {
+			pending.get();
+		} catch (CancellationException e) {
+			// Dropped by close()
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Compaction failed", e.getCause());
+		}
+	}
+
+	/**
+	 * Stops scheduling background compaction for this instance and drops any
+	 * pass that has not started yet. The shared compactor thread is a daemon
+	 * and keeps serving other instances.
+	 */
+	@Override
+	public synchronized void close() {
+		closed = true;
+		if (pendingCompaction != null) pendingCompaction.cancel(false);
+	}
+}
@@ -0,0 +1,160 @@
+package server;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Random;
+
+import driver.InputDistribution;
+import driver.QueryDistribution;
+import driver.QueryTrace;
+import rmq.*;
+
+/**
+ * A load-generator benchmark for RMQServer. It hosts a FischerHeunRMQ over a
+ * random array in-process, then drives it from several client threads, each
+ * keeping a fixed number of query batches in flight. It reports throughput
+ * and the p50/p99 latency of a batch from send to receive.
+ * <pre>
+ *       java server.LoadGenerator address array-size clients batch depth seconds
+ * </pre>
+ * where address is unix:path or tcp:port (tcp:0 picks a free port).
+ */
+public class LoadGenerator {
+	public static void main(String[] args) throws Exception {
+		if (args.length != 6) {
+			System.out.println("Usage: java server.LoadGenerator (unix:path | tcp:port) array-size clients batch depth seconds");
+			return;
+		}
+		int size = Integer.parseInt(args[1]);
+		int clients = Integer.parseInt(args[2]);
+		int batch = Integer.parseInt(args[3]);
+		int depth = Integer.parseInt(args[4]);
+		long durationNanos = Long.parseLong(args[5]) * 1000000000L;
+
+		float[] elems = InputDistribution.UNIFORM.generate(new Random(0), size);
+		final RMQServer server = new RMQServer();
+		server.register("bench", new FischerHeunRMQ(elems), size);
+		server.start(Protocol.parseAddress(args[0]));
+		Thread serverThread = new Thread(() -> {
+			try {
+				server.serve();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}, "rmq-server");
+		serverThread.start();
+
+		Worker[] workers = new Worker[clients];
+		try {
+			for (int c = 0; c < clients; c++) {
+				workers[c] = new Worker(server.address(), elems, batch, depth, durationNanos, c);
+				workers[c].start();
+			}
+		} finally {
+			// Wait for every client before stopping the server, even on failure
+			for (Worker worker : workers) {
+				if (worker != null) worker.join();
+			}
+			server.close();
+			serverThread.join();
+		}
+		long queries = 0;
+		long[] latencies = new long[0];
+		for (Worker worker : workers) {
+			if (worker.failure instanceof Error) throw (Error) worker.failure;
+			if (worker.failure != null) throw (Exception) worker.failure;
+			queries += worker.queries;
+			int old = latencies.length;
+			latencies = Arrays.copyOf(latencies, old + worker.count);
+			System.arraycopy(worker.latencies, 0, latencies, old, worker.count);
+		}
+		Arrays.sort(latencies);
+
+		System.out.println("address:     " + server.address());
+		System.out.println("clients:     " + clients + " x depth " + depth + " x batch " + batch);
+		System.out.printf("throughput:  %.0f queries/s%n", queries / (durationNanos / 1e9));
+		System.out.printf("latency p50: %.1f us%n", Percentile(latencies, 0.50) / 1e3);
+		System.out.printf("latency p99: %.1f us%n", Percentile(latencies, 0.99) / 1e3);
+	}
+
+	private static long Percentile(long[] sorted, double p) {
+		if (sorted.length == 0) return 0;
+		return sorted[(int)Math.min(sorted.length - 1, (long)(p * sorted.length))];
+	}
+
+	/**
+	 * One client connection issuing pipelined batches and checking that each
+	 * answer lies inside its range.
+	 */
+	private static class Worker extends Thread {
+		private final SocketAddress address;
+		private final float[] elems;
+		private final int batch;
+		private final int depth;
+		private final long durationNanos;
+		private final int seed;
+		long queries;
+		long[] latencies = new long[1024];
+		int count;
+		Throwable failure;  // whatever ended the run early, reported by main
+
+		Worker(SocketAddress address, float[] elems, int batch, int depth, long durationNanos, int seed) {
+			this.address = address;
+			this.elems = elems;
+			this.batch = batch;
+			this.depth = depth;
+			this.durationNanos = durationNanos;
+			this.seed = seed;
+		}
+
+		@Override
+		public void run() {
+			try {
+				Run();
+			} catch (Exception | Error e) {
+				failure = e;
+			}
+		}
+
+		private void Run() throws IOException {
+			/* Reuse a pregenerated trace so the clients are not the bottleneck. */
+			QueryTrace trace = QueryDistribution.UNIFORM.generate(new Random(seed), elems, batch * 64);
+			int[] is = trace.is();
+			int[] js = trace.js();
+			int[] answers = new int[batch];
+			long[] sentAt = new long[depth];
+			try (RMQClient client = RMQClient.connect(address)) {
+				int handle = client.lookup("bench");
+				long end = System.nanoTime() + durationNanos;
+				int sent = 0;
+				int received = 0;
+				while (true) {
+					boolean running = System.nanoTime() < end;
+					if (running && sent - received < depth) {
+						sentAt[sent % depth] = System.nanoTime();
+						client.send(handle, is, js, (sent % 64) * batch, batch);
+						sent++;
+						continue;
+					}
+					if (received == sent) break;
+					client.receive(answers, 0);
+					Record(System.nanoTime() - sentAt[received % depth]);
+					int offset = (received % 64) * batch;
+					for (int q = 0; q < batch; q++) {
+						if (answers[q] < is[offset + q] || answers[q] > js[offset + q]) {
+							throw new IOException("Answer " + answers[q] + " outside (" + is[offset + q] + ", " + js[offset + q] + ")");
+						}
+					}
+					received++;
+					queries += batch;
+				}
+			}
+		}
+
+		private void Record(long nanos) {
+			if (count == latencies.length) latencies = Arrays.copyOf(latencies, 2 * count);
+			latencies[count++] = nanos;
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package server;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+
+/**
+ * Constants for the binary protocol spoken between RMQServer and RMQClient.
+ * <p>
+ * All integers are big-endian. Every request is a frame of
+ * <pre>
+ *       int length, int tag, byte op, payload
+ * </pre>
+ * where length counts the bytes after itself. Every response is
+ * <pre>
+ *       int length, int tag, byte status, payload
+ * </pre>
+ * with the tag copied from the request. Responses on a connection always come
+ * back in request order, so a client may pipeline as many frames as it likes
+ * before reading.
+ * <ul>
+ * <li>LOOKUP: payload is int nameLength and the UTF-8 name. The response
+ *     payload is the int handle for that structure.</li>
+ * <li>QUERY: payload is int handle, int count and count (i, j) int pairs. The
+ *     response payload is int count and count int answers.</li>
+ * </ul>
+ * A response with status ERROR carries int messageLength and a UTF-8 message.
+ */
+final class Protocol {
+	private Protocol() {}
+
+	static final byte OP_LOOKUP = 1;
+	static final byte OP_QUERY = 2;
+
+	static final byte STATUS_OK = 0;
+	static final byte STATUS_ERROR = 1;
+
+	/** Bytes of a frame header: length, tag and op or status. */
+	static final int HEADER_BYTES = 9;
+
+	/** Largest frame either side will accept, to bound buffer growth. */
+	static final int MAX_FRAME_BYTES = 1 << 24;
+
+	/** Most queries allowed in one QUERY frame. */
+	static final int MAX_BATCH = (MAX_FRAME_BYTES - HEADER_BYTES - 8) / 8;
+
+	/**
+	 * Parses an address of the form "unix:/path/to/socket" or "tcp:port".
+	 * TCP addresses always bind to the loopback interface.
+	 *
+	 * @param address the address string
+	 * @return the socket address
+	 */
+	static SocketAddress parseAddress(String address) {
+		if (address.startsWith("unix:")) {
+			return UnixDomainSocketAddress.of(address.substring(5));
+		}
+		if (address.startsWith("tcp:")) {
+			return new InetSocketAddress(InetAddress.getLoopbackAddress(),
+					Integer.parseInt(address.substring(4)));
+		}
+		throw new IllegalArgumentException("Address must be unix:<path> or tcp:<port>, not " + address);
+	}
+}
@@ -0,0 +1,216 @@
+package server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A blocking client for RMQServer. Requests can be made one at a time with
+ * lookup, rmq and rmqBatch, or pipelined by calling send several times before
+ * reading the answers back in the same order with receive.
+ * <p>
+ * A client is not thread safe; give each thread its own connection. Keep
+ * the amount of unread pipelined work bounded (a few megabytes of answers),
+ * since the server stops reading from a connection whose answers are not
+ * being collected.
+ */
+public class RMQClient implements AutoCloseable {
+	private final SocketChannel channel;
+	private ByteBuffer out = ByteBuffer.allocate(1 << 16);
+	private ByteBuffer in = ByteBuffer.allocate(1 << 16);
+	private int buffered;  // bytes of in holding data
+	private int consumed;  // bytes at the front of in already handed out
+	private int nextTag;
+	private int expectedTag;
+
+	private RMQClient(SocketChannel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * Connects to a server.
+	 *
+	 * @param address A UnixDomainSocketAddress or loopback InetSocketAddress.
+	 * @return The connected client.
+	 * @throws IOException If the connection fails.
+	 */
+	public static RMQClient connect(SocketAddress address) throws IOException {
+		return new RMQClient(SocketChannel.open(address));
+	}
+
+	/**
+	 * Connects to a server given an address string of the form unix:path or
+	 * tcp:port.
+	 *
+	 * @param address The address string.
+	 * @return The connected client.
+	 * @throws IOException If the connection fails.
+	 */
+	public static RMQClient connect(String address) throws IOException {
+		return connect(Protocol.parseAddress(address));
+	}
+
+	/**
+	 * Looks up the handle of a named structure. Must not be called while
+	 * pipelined queries are outstanding.
+	 *
+	 * @param name The name the structure was registered under.
+	 * @return The handle to pass to queries.
+	 * @throws IOException If the request fails or the name is unknown.
+	 */
+	public int lookup(String name) throws IOException {
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer frame = Frame(Protocol.OP_LOOKUP, 4 + bytes.length);
+		frame.putInt(bytes.length).put(bytes);
+		WriteFrame();
+		return ReadResponse().getInt();
+	}
+
+	/**
+	 * Answers a single query.
+	 *
+	 * @param handle The structure's handle.
+	 * @param i The lower end of the range, inclusive.
+	 * @param j The upper end of the range, inclusive.
+	 * @return The value of RMQ_A(i, j).
+	 * @throws IOException If the request fails.
+	 */
+	public int rmq(int handle, int i, int j) throws IOException {
+		ByteBuffer frame = Frame(Protocol.OP_QUERY, 16);
+		frame.putInt(handle).putInt(1).putInt(i).putInt(j);
+		WriteFrame();
+		ByteBuffer response = ReadResponse();
+		response.getInt();
+		return response.getInt();
+	}
+
+	/**
+	 * Answers a batch of queries in one round trip.
+	 *
+	 * @param handle The structure's handle.
+	 * @param is The lower ends of the queries.
+	 * @param js The upper ends of the queries.
+	 * @param out Receives the answers, one per query.
+	 * @throws IOException If the request fails.
+	 */
+	public void rmqBatch(int handle, int[] is, int[] js, int[] out) throws IOException {
+		send(handle, is, js, 0, is.length);
+		receive(out, 0);
+	}
+
+	/**
+	 * Sends a batch of queries without waiting for the answers.
+	 *
+	 * @param handle The structure's handle.
+	 * @param is The lower ends of the queries.
+	 * @param js The upper ends of the queries.
+	 * @param offset Index of the first query to send.
+	 * @param count Number of queries to send.
+	 * @throws IOException If the request cannot be written.
+	 */
+	public void send(int handle, int[] is, int[] js, int offset, int count) throws IOException {
+		if (count > Protocol.MAX_BATCH) throw new IllegalArgumentException("Batch of " + count + " exceeds " + Protocol.MAX_BATCH);
+		ByteBuffer frame = Frame(Protocol.OP_QUERY, 8 + 8 * count);
+		frame.putInt(handle).putInt(count);
+		for (int q = offset; q < offset + count; q++) {
+			frame.putInt(is[q]).putInt(js[q]);
+		}
+		WriteFrame();
+	}
+
+	/**
+	 * Reads the answers to the oldest outstanding send.
+	 *
+	 * @param out Receives the answers.
+	 * @param offset Index in out of the first answer.
+	 * @return The number of answers read.
+	 * @throws IOException If the response cannot be read or reports an error.
+	 */
+	public int receive(int[] out, int offset) throws IOException {
+		ByteBuffer response = ReadResponse();
+		int count = response.getInt();
+		for (int q = 0; q < count; q++) {
+			out[offset + q] = response.getInt();
+		}
+		return count;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Starts a request frame in the output buffer.
+	 * @param op the operation
+	 * @param payload payload size in bytes
+	 * @return the output buffer, positioned at the payload
+	 */
+	private ByteBuffer Frame(byte op, int payload) {
+		int size = Protocol.HEADER_BYTES + payload;
+		if (out.capacity() < size) out = ByteBuffer.allocate(Math.max(size, 2 * out.capacity()));
+		out.clear();
+		out.putInt(size - 4).putInt(nextTag++).put(op);
+		return out;
+	}
+
+	private void WriteFrame() throws IOException {
+		out.flip();
+		while (out.hasRemaining()) {
+			channel.write(out);
+		}
+	}
+
+	/**
+	 * Reads the next response frame and checks its tag and status.
+	 * @return the payload
+	 */
+	private ByteBuffer ReadResponse() throws IOException {
+		// Drop the previous frame, keeping anything read after it
+		if (consumed > 0) {
+			in.limit(buffered).position(consumed);
+			in.compact();
+			buffered -= consumed;
+			consumed = 0;
+		}
+		Fill(4);
+		int length = in.getInt(0);
+		if (length < Protocol.HEADER_BYTES - 4 || length > Protocol.MAX_FRAME_BYTES) {
+			throw new IOException("Bad frame length " + length);
+		}
+		Fill(4 + length);
+		consumed = 4 + length;
+		in.limit(consumed).position(4);
+		int tag = in.getInt();
+		byte status = in.get();
+		if (tag != expectedTag++) throw new IOException("Response out of order: tag " + tag);
+		if (status != Protocol.STATUS_OK) {
+			byte[] message = new byte[in.getInt()];
+			in.get(message);
+			throw new IOException("Server error: " + new String(message, StandardCharsets.UTF_8));
+		}
+		return in;
+	}
+
+	/**
+	 * Reads from the socket until the input buffer holds at least the given
+	 * number of bytes, growing it if needed.
+	 * @param bytes number of bytes needed
+	 */
+	private void Fill(int bytes) throws IOException {
+		if (in.capacity() < bytes) {
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(bytes, 2 * in.capacity()));
+			in.limit(buffered).position(0);
+			in = bigger.put(in);
+		}
+		in.limit(in.capacity()).position(buffered);
+		while (buffered < bytes) {
+			int read = channel.read(in);
+			if (read < 0) throw new EOFException("Server closed the connection");
+			buffered += read;
+		}
+	}
+}
@@ -0,0 +1,302 @@
+package server;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import driver.QueryTrace;
+import rmq.*;
+
+/**
+ * A local server that hosts named, prebuilt RMQ structures so several
+ * processes on one host can share them instead of each holding a copy. It
+ * listens on a Unix domain socket or a loopback TCP port and speaks the
+ * binary protocol described in Protocol.
+ * <p>
+ * One selector thread accepts connections, decodes frames and answers them.
+ * RMQ queries are O(1), so doing the work on the selector thread is cheaper
+ * than handing it to a pool. A connection whose unsent responses pile up
+ * past a limit stops being read until the client catches up.
+ */
+public class RMQServer implements AutoCloseable {
+	/** Pending output above which a connection stops being read. */
+	private static final int MAX_PENDING_OUTPUT = 1 << 22;
+
+	private final Map<String, Integer> handles = new HashMap<String, Integer>();
+	private final List<RMQ> structures = new ArrayList<RMQ>();
+	private final List<Integer> lengths = new ArrayList<Integer>();
+	private Selector selector;
+	private ServerSocketChannel serverChannel;
+	private SocketAddress boundAddress;
+	private volatile boolean closed;
+
+	/**
+	 * Per-connection buffers. Both are kept in write mode between events.
+	 */
+	private static class Connection {
+		ByteBuffer in = ByteBuffer.allocate(1 << 16);
+		ByteBuffer out = ByteBuffer.allocate(1 << 16);
+	}
+
+	/**
+	 * Adds a structure under the given name. Must be called before start.
+	 *
+	 * @param name The name clients look the structure up by.
+	 * @param rmq The structure.
+	 * @param length The length of the array it was built over.
+	 */
+	public synchronized void register(String name, RMQ rmq, int length) {
+		if (selector != null) throw new IllegalStateException("Server already started");
+		handles.put(name, structures.size());
+		structures.add(rmq);
+		lengths.add(length);
+	}
+
+	/**
+	 * Binds the server to an address. Call serve, usually on its own thread,
+	 * to start answering.
+	 *
+	 * @param address A UnixDomainSocketAddress or loopback InetSocketAddress.
+	 * @throws IOException If the address cannot be bound.
+	 */
+	public synchronized void start(SocketAddress address) throws IOException {
+		if (address instanceof UnixDomainSocketAddress) {
+			Files.deleteIfExists(((UnixDomainSocketAddress)address).getPath());
+			serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		} else {
+			serverChannel = ServerSocketChannel.open();
+		}
+		serverChannel.bind(address);
+		serverChannel.configureBlocking(false);
+		boundAddress = serverChannel.getLocalAddress();
+		selector = Selector.open();
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * Returns the address actually bound, which tells callers the port when
+	 * they asked for tcp:0.
+	 *
+	 * @return The bound address.
+	 */
+	public SocketAddress address() {
+		return boundAddress;
+	}
+
+	/**
+	 * Runs the event loop until close is called, then releases the sockets.
+	 *
+	 * @throws IOException If the selector fails.
+	 */
+	public void serve() throws IOException {
+		try {
+			while (!closed) {
+				selector.select();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						if (key.isAcceptable()) {
+							Accept();
+						} else {
+							if (key.isReadable()) Read(key);
+							if (key.isValid() && key.isWritable()) Flush(key);
+						}
+					} catch (IOException e) {
+						CloseConnection(key);
+					}
+				}
+			}
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				key.channel().close();
+			}
+			selector.close();
+			if (boundAddress instanceof UnixDomainSocketAddress) {
+				Files.deleteIfExists(((UnixDomainSocketAddress)boundAddress).getPath());
+			}
+		}
+	}
+
+	/**
+	 * Asks the event loop to stop. It closes every connection on its way out.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		if (selector != null) selector.wakeup();
+	}
+
+	private void Accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null) return;
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_READ, new Connection());
+	}
+
+	private void CloseConnection(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			// Nothing more to do with a connection that failed to close
+		}
+	}
+
+	/**
+	 * Reads what is available, answers every complete frame and tries to
+	 * send the answers straight away.
+	 * @param key the connection's key
+	 */
+	private void Read(SelectionKey key) throws IOException {
+		SocketChannel channel = (SocketChannel)key.channel();
+		Connection conn = (Connection)key.attachment();
+		if (channel.read(conn.in) < 0) {
+			CloseConnection(key);
+			return;
+		}
+		ByteBuffer in = conn.in;
+		in.flip();
+		while (in.remaining() >= 4) {
+			int length = in.getInt(in.position());
+			if (length < Protocol.HEADER_BYTES - 4 || length > Protocol.MAX_FRAME_BYTES) {
+				throw new IOException("Bad frame length " + length);
+			}
+			if (in.remaining() < 4 + length) break;
+			HandleFrame(conn, in.slice(in.position() + 4, length));
+			in.position(in.position() + 4 + length);
+		}
+		in.compact();
+		// Make room for a frame larger than the buffer
+		if (!in.hasRemaining()) {
+			conn.in = ByteBuffer.allocate(in.capacity() * 2).put(in.flip());
+		}
+		Flush(key);
+	}
+
+	/**
+	 * Decodes one frame and appends its response to the output buffer.
+	 * @param conn the connection
+	 * @param in the frame, without its length
+	 */
+	private void HandleFrame(Connection conn, ByteBuffer in) {
+		int tag = in.getInt();
+		byte op = in.get();
+		try {
+			if (op == Protocol.OP_LOOKUP) {
+				int nameLength = in.getInt();
+				if (nameLength < 0 || nameLength > in.remaining()) throw new IllegalArgumentException("Bad name length");
+				byte[] name = new byte[nameLength];
+				in.get(name);
+				Integer handle = handles.get(new String(name, StandardCharsets.UTF_8));
+				if (handle == null) throw new IllegalArgumentException("No structure named " + new String(name, StandardCharsets.UTF_8));
+				ByteBuffer out = Reserve(conn, Protocol.HEADER_BYTES + 4);
+				out.putInt(Protocol.HEADER_BYTES - 4 + 4).putInt(tag).put(Protocol.STATUS_OK).putInt(handle);
+			} else if (op == Protocol.OP_QUERY) {
+				int handle = in.getInt();
+				int count = in.getInt();
+				if (handle < 0 || handle >= structures.size()) throw new IllegalArgumentException("Bad handle " + handle);
+				if (count < 0 || 8L * count != in.remaining()) throw new IllegalArgumentException("Bad query count " + count);
+				RMQ rmq = structures.get(handle);
+				int length = lengths.get(handle);
+				// Validate the whole batch before writing any of the answer
+				int start = in.position();
+				for (int q = 0; q < count; q++) {
+					int i = in.getInt();
+					int j = in.getInt();
+					if (i < 0 || i > j || j >= length) throw new IllegalArgumentException("Query (" + i + ", " + j + ") out of range");
+				}
+				in.position(start);
+				ByteBuffer out = Reserve(conn, Protocol.HEADER_BYTES + 4 + 4 * count);
+				out.putInt(Protocol.HEADER_BYTES - 4 + 4 + 4 * count).putInt(tag).put(Protocol.STATUS_OK).putInt(count);
+				for (int q = 0; q < count; q++) {
+					out.putInt(rmq.rmq(in.getInt(), in.getInt()));
+				}
+			} else {
+				throw new IllegalArgumentException("Unknown op " + op);
+			}
+		} catch (IllegalArgumentException | BufferUnderflowException e) {
+			byte[] message = (e.getMessage() == null ? "Malformed frame" : e.getMessage()).getBytes(StandardCharsets.UTF_8);
+			ByteBuffer out = Reserve(conn, Protocol.HEADER_BYTES + 4 + message.length);
+			out.putInt(Protocol.HEADER_BYTES - 4 + 4 + message.length).putInt(tag).put(Protocol.STATUS_ERROR)
+					.putInt(message.length).put(message);
+		}
+	}
+
+	/**
+	 * Makes sure the output buffer has room for the given number of bytes.
+	 * @param conn the connection
+	 * @param bytes bytes about to be written
+	 * @return the output buffer
+	 */
+	private static ByteBuffer Reserve(Connection conn, int bytes) {
+		if (conn.out.remaining() < bytes) {
+			int capacity = conn.out.capacity();
+			while (capacity - conn.out.position() < bytes) capacity *= 2;
+			conn.out = ByteBuffer.allocate(capacity).put(conn.out.flip());
+		}
+		return conn.out;
+	}
+
+	/**
+	 * Writes as much pending output as the socket takes, and only keeps
+	 * reading while the backlog is small.
+	 * @param key the connection's key
+	 */
+	private void Flush(SelectionKey key) throws IOException {
+		SocketChannel channel = (SocketChannel)key.channel();
+		Connection conn = (Connection)key.attachment();
+		conn.out.flip();
+		channel.write(conn.out);
+		conn.out.compact();
+		int pending = conn.out.position();
+		int interest = pending < MAX_PENDING_OUTPUT ? SelectionKey.OP_READ : 0;
+		if (pending > 0) interest |= SelectionKey.OP_WRITE;
+		key.interestOps(interest);
+	}
+
+	/**
+	 * Runs a server over arrays stored in query trace files (as written by
+	 * RMQDriver --gen-trace).
+	 * <pre>
+	 *       java server.RMQServer address rmq-class-name name=trace-file ...
+	 * </pre>
+	 * where address is unix:path or tcp:port.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.out.println("Usage: java server.RMQServer (unix:path | tcp:port) rmq-class-name name=trace-file ...");
+			return;
+		}
+		Constructor<?> ctor = Class.forName(args[1]).getConstructor(float[].class);
+		RMQServer server = new RMQServer();
+		for (int arg = 2; arg < args.length; arg++) {
+			int eq = args[arg].indexOf('=');
+			if (eq < 0) throw new IllegalArgumentException("Expected name=trace-file, got " + args[arg]);
+			Path path = Paths.get(args[arg].substring(eq + 1));
+			float[] elems = QueryTrace.read(path).elems();
+			server.register(args[arg].substring(0, eq), (RMQ)ctor.newInstance(elems), elems.length);
+		}
+		server.start(Protocol.parseAddress(args[0]));
+		System.out.println("Serving on " + server.address());
+		server.serve();
+	}
+}